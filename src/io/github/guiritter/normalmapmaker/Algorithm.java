@@ -1,19 +1,22 @@
 package io.github.guiritter.normalmapmaker;
 
-import static io.github.guiritter.normalmapmaker.Polygon.maximumX;
-import static io.github.guiritter.normalmapmaker.Polygon.maximumY;
-import static io.github.guiritter.normalmapmaker.Polygon.minimumX;
-import static io.github.guiritter.normalmapmaker.Polygon.minimumY;
-import io.github.guiritter.normalmapmaker.style.Standard;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.maximumX;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.maximumY;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.minimumX;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.minimumY;
 import io.github.guiritter.normalmapmaker.style.Style;
-import io.github.guiritter.normalmapmaker.style.WarThunder;
-import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import javafx.geometry.Point3D;
-import javax.imageio.ImageIO;
+import java.util.List;
+import java.util.stream.IntStream;
 import org.j3d.loaders.InvalidFormatException;
 import org.j3d.loaders.stl.STLFileReader;
 
@@ -39,6 +42,13 @@ public abstract class Algorithm {
      */
     public static final long ERROR_NO_VALID = -3;
 
+    /**
+     * Error message ID for when the job is estimated to need more memory
+     * than {@link Options#memoryBudget}, or than the heap with
+     * {@link Options#STORAGE_AUTO}.
+     */
+    public static final long ERROR_TOO_BIG = -4;
+
     /**
      * Return array index for the amount of polygons
      * with at least two vertices in the same position.
@@ -51,6 +61,12 @@ public abstract class Algorithm {
      */
     public static final int IGNORED_UPRIGHT = 1;
 
+    /**
+     * Return array index for the amount of polygons whose normal
+     * was replaced by one computed from their vertices.
+     */
+    public static final int REPLACED_NORMALS = 2;
+
     public static final int PROGRESS_BAR_AMOUNT = 4;
 
     /**
@@ -72,89 +88,445 @@ public abstract class Algorithm {
      * {@link org.j3d.loaders.stl.STLFileReader}.
      * @throws IOException also thrown by
      * {@link org.j3d.loaders.stl.STLFileReader}
-     * and by {@link javax.imageio.ImageIO}
+     * and when writing the PNG(s)
      */
     public long[] make(File inputFile, File outputFile,
      int outputWidth, int outputHeight, Style style)
      throws InvalidFormatException, IOException {
-        STLFileReader reader = new STLFileReader(inputFile);
-        long returnArray[] = new long[2];
+        return make(inputFile, outputFile, outputWidth, outputHeight, style,
+         new Options());
+    }
+
+    /**
+     * Same as {@link #make(java.io.File, java.io.File, int, int,
+     * io.github.guiritter.normalmapmaker.style.Style)}, with optional settings.
+     * @param inputFile path to the input STL
+     * @param outputFile path to the output PNG(s)
+     * @param outputWidth intended output width
+     * @param outputHeight intended output height
+     * @param style {@link nmm.Algorithm.Style}
+     * @param options {@link io.github.guiritter.normalmapmaker.Options}
+     * @return the count of polygons ignored and of normals replaced
+     * @throws InvalidFormatException thrown by
+     * {@link org.j3d.loaders.stl.STLFileReader}.
+     * @throws IOException also thrown by
+     * {@link org.j3d.loaders.stl.STLFileReader}
+     * and when writing the PNG(s)
+     */
+    public long[] make(File inputFile, File outputFile,
+     int outputWidth, int outputHeight, Style style, Options options)
+     throws InvalidFormatException, IOException {
+        validate(options);
+        long returnArray[] = new long[3];
         Arrays.fill(returnArray, 0);
-        if (reader.getNumOfFacets().length < 1) {
-            returnArray[IGNORED_INVALID] = ERROR_NO_SURFACES;
-            return returnArray;
+        STLFileReader highReader = options.highPoly == null ? null
+         : new STLFileReader(FileUrl.of(options.highPoly));
+        try (Job job = start(inputFile, facets(highReader),
+         outputWidth, outputHeight, options, returnArray)) {
+            if (job == null) {
+                return returnArray;
+            }
+            Options settled = job.options;
+            Soup high = highReader == null ? null
+             : readHighPoly(highReader, settled);
+            if (settled.views.length == 1) {
+                try (Framebuffer framebuffer = render(job.soup, high,
+                 settled.views[0], true, outputWidth, outputHeight, style,
+                 settled, returnArray)) {
+                    write(framebuffer, outputFile, style, settled);
+                }
+                return returnArray;
+            }
+            // every view works on its own copy, so they run concurrently
+            try {
+                returnArray[IGNORED_UPRIGHT] = Arrays.stream(settled.views)
+                 .parallel().mapToLong(view -> {
+                    long viewArray[] = new long[3];
+                    try (Framebuffer framebuffer = render(job.soup, high,
+                     view, false, outputWidth, outputHeight, style, settled,
+                     viewArray)) {
+                        write(framebuffer, getViewFile(outputFile, view),
+                         style, settled);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    return viewArray[IGNORED_UPRIGHT];
+                }).sum();
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        } finally {
+            if (highReader != null) {
+                highReader.close();
+            }
         }
-        int polygonCount = reader.getNumOfFacets()[0];
-        if (polygonCount < 1) {
-            returnArray[IGNORED_INVALID] = ERROR_NO_POLYGONS;
-            return returnArray;
+        return returnArray;
+    }
+
+    /**
+     * Renders several STL files, each to its own output file, as
+     * {@link #make(java.io.File, java.io.File, int, int,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)} would one at a time,
+     * but with reading, rasterizing and writing overlapped by a
+     * {@link Pipeline}: while one image is written, the next meshes are
+     * rasterized and read. How many files each stage works on at once, and
+     * how many may wait between stages, is set by the <code>batch</code>
+     * fields in {@link Options}. With a {@link Options#memoryBudget}, files
+     * are only read once their estimate fits in it, so a budget also bounds
+     * how many of them are in memory at once. {@link Options#highPoly} is
+     * read once and baked onto every mesh.
+     * @param inputFiles paths to the input STLs
+     * @param outputFiles path to the output PNG of each input STL
+     * @param outputWidth intended output width
+     * @param outputHeight intended output height
+     * @param style {@link nmm.Algorithm.Style}
+     * @param options {@link io.github.guiritter.normalmapmaker.Options};
+     * must have one view
+     * @return for each input file, the count of polygons ignored and of
+     * normals replaced, or an error ID, as returned by
+     * {@link #make(java.io.File, java.io.File, int, int,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)}
+     * @throws InvalidFormatException thrown by
+     * {@link org.j3d.loaders.stl.STLFileReader}.
+     * @throws IOException also thrown by
+     * {@link org.j3d.loaders.stl.STLFileReader}
+     * and when writing the PNG(s)
+     */
+    public long[][] makeBatch(List<File> inputFiles, List<File> outputFiles,
+     int outputWidth, int outputHeight, Style style, Options options)
+     throws InvalidFormatException, IOException {
+        validate(options);
+        if (options.views.length != 1) {
+            throw new IllegalArgumentException("batches need one view");
         }
-        // progress bar initialization
-        {
-            int i = 0;
-            setProgressMaximum(i++, polygonCount - 1);
-            setProgressMaximum(i++, polygonCount - 1);
-            setProgressMaximum(i++, 1);
-            setProgressMaximum(i  , polygonCount - 1);
-            for (i = 0; i < PROGRESS_BAR_AMOUNT; i++) {
-                setProgressValue(i, 0);
+        if (inputFiles.size() != outputFiles.size()) {
+            throw new IllegalArgumentException(inputFiles.size()
+             + " input files, but " + outputFiles.size() + " output files");
+        }
+        if ((options.batchReaders < 1) || (options.batchRasterizers < 1)
+         || (options.batchWriters < 1)) {
+            throw new IllegalArgumentException("unsupported batch threads: "
+             + options.batchReaders + ", " + options.batchRasterizers
+             + ", " + options.batchWriters);
+        }
+        if (options.batchQueue < 1) {
+            throw new IllegalArgumentException(
+             "unsupported batch queue: " + options.batchQueue);
+        }
+        int count = inputFiles.size();
+        long returnArrays[][] = new long[count][3];
+        Soup high = options.highPoly == null ? null
+         : readHighPoly(options.highPoly, options);
+        // each job counts the high poly mesh as its own, since it's turned
+        // again for every mesh and may outlive any other job
+        int highCount = high == null ? 0 : high.count;
+        Pipeline.run(count, options.batchQueue,
+         options.batchReaders, (i, input) -> start(inputFiles.get(i),
+          highCount, outputWidth, outputHeight, options, returnArrays[i]),
+         options.batchRasterizers, (i, job) -> {
+            if (job != null) {
+                try {
+                    job.framebuffer = render(job.soup, high,
+                     job.options.views[0], high == null, outputWidth,
+                     outputHeight, style, job.options, returnArrays[i]);
+                } catch (IOException | RuntimeException | Error ex) {
+                    job.close();
+                    throw ex;
+                }
+                job.soup = null;
             }
+            return job;
+        },
+         options.batchWriters, (i, job) -> {
+            if (job != null) {
+                try (Job j = job) {
+                    write(j.framebuffer, outputFiles.get(i), style,
+                     j.options);
+                }
+            }
+            return null;
+        });
+        return returnArrays;
+    }
+
+    /**
+     * Name of the file where a view is written when there is more than
+     * one: the output file's name with {@link Options#VIEW_NAMES}
+     * appended before the extension.
+     * @param outputFile path to the output PNG
+     * @param view one of the <code>VIEW</code> constants in {@link Options}
+     * @return
+     */
+    public static File getViewFile(File outputFile, int view) {
+        return rename(outputFile, "_" + Options.VIEW_NAMES.get(view), null);
+    }
+
+    /**
+     * Name of the file where an atlas page is written: the output file's
+     * name with the page index appended before the extension.
+     * @param outputFile path the pages are named after
+     * @param page page index
+     * @return
+     */
+    public static File getPageFile(File outputFile, int page) {
+        return rename(outputFile, "_" + page, null);
+    }
+
+    /**
+     * Name of the file where a mipmap level is written: the output file's
+     * name with <code>_mip</code> and the level appended before the
+     * extension. Level zero is the output file itself.
+     * @param outputFile path to the output PNG
+     * @param level mipmap level, halving the size at each one
+     * @return
+     */
+    public static File getMipFile(File outputFile, int level) {
+        return level == 0 ? outputFile
+         : rename(outputFile, "_mip" + level, null);
+    }
+
+    /**
+     * Name of the file where an atlas manifest is written: the output
+     * file's name with the extension replaced by <code>.json</code>.
+     * @param outputFile path the pages are named after
+     * @return
+     */
+    public static File getManifestFile(File outputFile) {
+        return rename(outputFile, "", ".json");
+    }
+
+    /**
+     * Renders several STL files into shared atlas pages, such as for
+     * many small props. Every mesh is scaled by the same factor and gets
+     * its own rectangle, placed by {@link RectanglePacker}, so meshes are
+     * read and drawn concurrently, even into the same page. Each page is
+     * written to {@link #getPageFile(java.io.File, int)} and the rectangles
+     * to a JSON manifest at {@link #getManifestFile(java.io.File)}.
+     * In the manifest, <code>x</code> and <code>y</code> are the rectangle's
+     * top left pixel, and <code>u0</code>, <code>v0</code>, <code>u1</code>
+     * and <code>v1</code> its corners as texture coordinates, with V going
+     * up from the bottom of the page. Meshes that can't be rendered get
+     * their error ID as <code>error</code> instead.
+     * @param inputFiles paths to the input STLs
+     * @param outputFile path the pages and the manifest are named after
+     * @param pageWidth
+     * @param pageHeight
+     * @param scale pixels per STL unit
+     * @param style {@link nmm.Algorithm.Style}
+     * @param options {@link io.github.guiritter.normalmapmaker.Options};
+     * must have one sample per pixel, one view and no high poly mesh
+     * @return for each input file, the count of polygons ignored and of
+     * normals replaced, as in {@link #make(java.io.File, java.io.File, int,
+     * int, io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)}
+     * @throws InvalidFormatException thrown by
+     * {@link org.j3d.loaders.stl.STLFileReader}.
+     * @throws IOException also thrown by
+     * {@link org.j3d.loaders.stl.STLFileReader}
+     * and when writing the PNG(s)
+     */
+    public long[][] makeAtlas(List<File> inputFiles, File outputFile,
+     int pageWidth, int pageHeight, double scale, Style style,
+     Options options) throws InvalidFormatException, IOException {
+        validate(options);
+        if ((options.samples != 1) || (options.views.length != 1)
+         || (options.highPoly != null)) {
+            throw new IllegalArgumentException("atlases need one sample"
+             + " per pixel, one view and no high poly mesh");
         }
-        System.out.println("facet array length: "
-         + reader.getNumOfFacets().length + "\n");
-        System.out.println(polygonCount + " facets\n");
-        Polygon polygons[] = new Polygon[polygonCount];
-        // reads the polygons and saves them as matrices of doubles
-        // for later processing
-        {
-            double polygon[][] = new double[3][3];
-            double normal[] = new double[3];
-            int polygonI;
-            int vertexI;
-            double limits[] = new double[4];
-            limits[maximumX] = Double.NEGATIVE_INFINITY;
-            limits[maximumY] = Double.NEGATIVE_INFINITY;
-            limits[minimumX] = Double.POSITIVE_INFINITY;
-            limits[minimumY] = Double.POSITIVE_INFINITY;
-            double polygonsTemporary[][][] = new double[polygonCount][3][3];
-            double normalsTemporary[][] = new double[polygonCount][3];
-            Polygon polygonTemporary;
-            boolean valid = false;
-            for (polygonI = 0; polygonI < polygonCount; polygonI++) {
-                reader.getNextFacet(normal, polygon);
-                polygonTemporary = new Polygon(normal, polygon);
-                if (polygonTemporary.hasOverlappingVertices()
-                 || polygonTemporary.isLine()) {
-                    normalsTemporary[polygonI] = null;
-                    polygonsTemporary[polygonI] = null;
-                    returnArray[IGNORED_INVALID]++;
-                } else {
-                    System.arraycopy(normal, 0,
-                     normalsTemporary[polygonI], 0, 3);
-                    for (vertexI = 0; vertexI < 3; vertexI++) {
-                        limits[maximumX] = Math.max(limits[maximumX],
-                         polygon[vertexI][0]);
-                        limits[maximumY] = Math.max(limits[maximumY],
-                         polygon[vertexI][1]);
-                        limits[minimumX] = Math.min(limits[minimumX],
-                         polygon[vertexI][0]);
-                        limits[minimumY] = Math.min(limits[minimumY],
-                         polygon[vertexI][1]);
-                        System.arraycopy(polygon[vertexI], 0,
-                         polygonsTemporary[polygonI][vertexI], 0, 3);
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("unsupported scale: " + scale);
+        }
+        if (options.atlasPadding < 0) {
+            throw new IllegalArgumentException(
+             "unsupported padding: " + options.atlasPadding);
+        }
+        int count = inputFiles.size();
+        int view = options.views[0];
+        long returnArrays[][] = new long[count][3];
+        Soup soups[] = new Soup[count];
+        float positions[][] = new float[count][];
+        float normals[][] = new float[count][];
+        float vertexNormals[][] = new float[count][];
+        double limits[][] = new double[count][];
+        try {
+            IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    STLFileReader reader = open(inputFiles.get(i),
+                     returnArrays[i]);
+                    if (reader != null) {
+                        try {
+                            soups[i] = load(reader, options, returnArrays[i]);
+                        } finally {
+                            reader.close();
+                        }
                     }
-                    valid = true;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                if (soups[i] != null) {
+                    positions[i] = soups[i].positions(view, true);
+                    normals[i] = soups[i].normals(view, true);
+                    vertexNormals[i] = soups[i].vertexNormals(view, true);
+                    limits[i] = limits(positions[i], soups[i].valid,
+                     soups[i].count);
                 }
-                setProgressValue(0, polygonI);
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        int placed[] = IntStream.range(0, count)
+         .filter(i -> soups[i] != null).toArray();
+        int widths[] = new int[placed.length];
+        int heights[] = new int[placed.length];
+        for (int j = 0; j < placed.length; j++) {
+            double l[] = limits[placed[j]];
+            widths[j] = ((int) Math.floor((l[maximumX] - l[minimumX])
+             * scale)) + 1;
+            heights[j] = ((int) Math.floor((l[maximumY] - l[minimumY])
+             * scale)) + 1;
+        }
+        int placements[] = RectanglePacker.pack(widths, heights,
+         pageWidth, pageHeight, options.atlasPadding);
+        int pageCount = 0;
+        for (int j = 0; j < placed.length; j++) {
+            pageCount = Math.max(pageCount,
+             placements[(j * 3) + RectanglePacker.PAGE] + 1);
+        }
+        for (int page = 0; page < pageCount; page++) {
+            final int finalPage = page;
+            try (Framebuffer framebuffer = new Framebuffer(pageWidth,
+             pageHeight, style.backgroundColor, options)) {
+                IntStream.range(0, placed.length).parallel()
+                 .filter(j -> placements[(j * 3) + RectanglePacker.PAGE]
+                  == finalPage).forEach(j -> {
+                    int i = placed[j];
+                    // the framebuffer's Y goes up from the bottom
+                    int x = placements[(j * 3) + RectanglePacker.X];
+                    int y = pageHeight - heights[j]
+                     - placements[(j * 3) + RectanglePacker.Y];
+                    transform(positions[i], soups[i].count,
+                     limits[i][minimumX] - (x / scale),
+                     limits[i][minimumY] - (y / scale), scale);
+                    TriangleMesh mesh = new TriangleMesh(positions[i],
+                     normals[i], vertexNormals[i], soups[i].valid,
+                     soups[i].count, options.splat, options.order);
+                    returnArrays[i][IGNORED_UPRIGHT] = mesh.upright;
+                    draw(mesh, framebuffer, x, y, widths[j], heights[j],
+                     style, options);
+                });
+                Dilation.dilate(framebuffer, options.dilation, options);
+                write(framebuffer, getPageFile(outputFile, page), style,
+                 options);
             }
-            if (!valid) {
-                for (int i = 0; i < PROGRESS_BAR_AMOUNT; i++) {
-                    setProgressMaximum(i, 1);
-                    setProgressValue(i, 1);
+        }
+        // the manifest
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(
+         getManifestFile(outputFile)), StandardCharsets.UTF_8)) {
+            writer.write("{\n  \"width\": " + pageWidth
+             + ",\n  \"height\": " + pageHeight + ",\n  \"pages\": [");
+            for (int page = 0; page < pageCount; page++) {
+                writer.write((page > 0 ? ", " : "")
+                 + quote(getPageFile(outputFile, page).getName()));
+            }
+            writer.write("],\n  \"meshes\": [");
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                writer.write((i > 0 ? "," : "") + "\n    {\"file\": "
+                 + quote(inputFiles.get(i).getPath()));
+                if (soups[i] == null) {
+                    writer.write(", \"error\": "
+                     + returnArrays[i][IGNORED_INVALID] + "}");
+                    continue;
                 }
-                returnArray[IGNORED_INVALID] = ERROR_NO_VALID;
-                return returnArray;
+                int x = placements[(j * 3) + RectanglePacker.X];
+                int y = placements[(j * 3) + RectanglePacker.Y];
+                writer.write(", \"page\": "
+                 + placements[(j * 3) + RectanglePacker.PAGE]
+                 + ", \"x\": " + x + ", \"y\": " + y
+                 + ", \"width\": " + widths[j]
+                 + ", \"height\": " + heights[j]
+                 + ", \"u0\": " + (((double) x) / pageWidth)
+                 + ", \"v0\": "
+                 + (((double) (pageHeight - y - heights[j])) / pageHeight)
+                 + ", \"u1\": " + (((double) (x + widths[j])) / pageWidth)
+                 + ", \"v1\": " + (((double) (pageHeight - y)) / pageHeight)
+                 + "}");
+                j++;
             }
+            writer.write("\n  ]\n}\n");
+        }
+        return returnArrays;
+    }
+
+    /**
+     * Quotes a string for JSON.
+     */
+    private static String quote(String string) {
+        StringBuilder builder = new StringBuilder("\"");
+        char c;
+        for (int i = 0; i < string.length(); i++) {
+            c = string.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                builder.append('\\').append(c);
+            } else if (c < ' ') {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    /**
+     * Appends a suffix to a file's name, before its extension,
+     * and optionally replaces the extension.
+     * @param file
+     * @param suffix
+     * @param extension new extension, with the dot, or null to keep it
+     * @return
+     */
+    private static File rename(File file, String suffix, String extension) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            dot = name.length();
+        }
+        return new File(file.getParentFile(), name.substring(0, dot) + suffix
+         + (extension == null ? name.substring(dot) : extension));
+    }
+
+    /**
+     * Turns the polygons to one view, scales them to the output size,
+     * rasterizes them and dilates the image.
+     * @param soup polygons to render
+     * @param high high poly polygons for {@link Options#highPoly}, or null
+     * @param view one of the <code>VIEW</code> constants in {@link Options}
+     * @param inPlace whether the polygons' arrays may be changed instead of
+     * copied, when no other view needs them
+     * @param outputWidth intended output width
+     * @param outputHeight intended output height
+     * @param style
+     * @param options
+     * @param returnArray receives the amount of polygons left out for being
+     * upright in this view
+     * @return the image, to be closed by the caller
+     * @throws IOException thrown by {@link Framebuffer}
+     */
+    private Framebuffer render(Soup soup, Soup high, int view,
+     boolean inPlace, int outputWidth, int outputHeight, Style style,
+     Options options, long returnArray[]) throws IOException {
+        int polygonCount = soup.count;
+        float positions[] = soup.positions(view, inPlace);
+        float normals[] = soup.normals(view, inPlace);
+        float vertexNormals[] = soup.vertexNormals(view, inPlace);
+        boolean validArray[] = soup.valid;
+        TriangleMesh mesh;
+        Bvh highMesh = null;
+        {
+            double limits[] = limits(positions, validArray, polygonCount);
             System.out.println("STL minimum X: " + limits[minimumX]);
             System.out.println("STL minimum Y: " + limits[minimumY]);
             System.out.println("STL maximum X: " + limits[maximumX]);
@@ -188,86 +560,750 @@ public abstract class Algorithm {
                     }
                 }
             }
-            // creates the polygon objects while scaling and translating them,
+            // scales and translates the polygons,
             // so their coordinates match the available pixel indexes
             System.out.println("scale: " + scale + "\n");
-            for (polygonI = 0; polygonI < polygonCount; polygonI++) {
-                if (polygonsTemporary[polygonI] == null) {
-                    polygons[polygonI] = null;
-                } else {
-                    for (vertexI = 0; vertexI < 3; vertexI++) {
-                        polygonsTemporary[polygonI][vertexI][0]
-                         = (polygonsTemporary[polygonI][vertexI][0]
-                         - limits[minimumX]) * scale;
-                        polygonsTemporary[polygonI][vertexI][1]
-                         = (polygonsTemporary[polygonI][vertexI][1]
-                         - limits[minimumY]) * scale;
-                        polygonsTemporary[polygonI][vertexI][2]
-                         =  polygonsTemporary[polygonI][vertexI][2]
-                         * scale;
-                    }
-                    polygons[polygonI] = new Polygon(
-                     normalsTemporary[polygonI],
-                     polygonsTemporary[polygonI]);
-                }
-                setProgressValue(1, polygonI);
+            transform(positions, polygonCount,
+             limits[minimumX], limits[minimumY], scale);
+            mesh = new TriangleMesh(positions, normals, vertexNormals,
+             validArray, polygonCount, options.splat
+             && (options.samples == 1) && (high == null),
+             options.order);
+            if (high != null) {
+                float highPositions[] = high.positions(view, inPlace);
+                transform(highPositions, high.count,
+                 limits[minimumX], limits[minimumY], scale);
+                highMesh = new Bvh(highPositions, high.normals(view, inPlace),
+                 high.vertexNormals(view, inPlace), high.valid, high.count);
             }
+            setProgressValue(1, polygonCount - 1);
         }
         setProgressMaximum(2, outputHeight - 1);
-        BufferedImage image = new BufferedImage(
-         outputWidth, outputHeight, BufferedImage.TYPE_INT_ARGB);
-        WritableRaster raster = image.getRaster();
-        double zBuffer[][] = new double[outputWidth][outputHeight];
-        int x;
-        int y;
-        int color[] = new int[]{0, 0, 0, 0};
-        Point3D point;
-        // initializes the output image with the background color
+        setProgressMaximum(3, Math.max(1, mesh.count - 1));
         int backgroundColor[] = style.backgroundColor;
-        for (y = 0; y < outputHeight; y++) {
-            for (x = 0; x < outputWidth; x++) {
-                raster.setPixel(x, y, backgroundColor);
-                zBuffer[x][y] = Double.NEGATIVE_INFINITY;
+        Framebuffer framebuffer = new Framebuffer(
+         outputWidth, outputHeight, backgroundColor, options);
+        try {
+            setProgressValue(2, outputHeight - 1);
+            if (options.samples > 1) {
+                try (Multisample multisample = new Multisample(
+                 options.samples, outputWidth, outputHeight,
+                 backgroundColor, options)) {
+                    for (int i = 0; i < mesh.splatStart; i++) {
+                        multisample.rasterize(mesh, i, style);
+                        setProgressValue(3, i);
+                    }
+                    multisample.resolve(framebuffer);
+                }
+            } else if (highMesh != null) {
+                try (PixelStore ids = PixelStore.allocate(
+                 ((long) outputWidth) * outputHeight, options)) {
+                    ids.fill(-1);
+                    rasterize(mesh, framebuffer, style, ids);
+                    cast(mesh, highMesh, framebuffer, ids, style, options.cage
+                     * Math.max(outputWidth, outputHeight));
+                }
+            } else if (options.workers > 0) {
+                Tiles.render(this, mesh, normals, vertexNormals, framebuffer,
+                 style, options);
+            } else {
+                draw(mesh, framebuffer, style, options);
             }
-            setProgressValue(2, y);
+            Dilation.dilate(framebuffer, options.dilation, options);
+        } catch (IOException | RuntimeException | Error ex) {
+            framebuffer.close();
+            throw ex;
         }
-        // iterate through the polygons
-        for (int i = 0; i < polygonCount; i++) {
-            if ((polygons[i] == null)) {
-                continue;
-            } else if (polygons[i].isUpright()) {
-                returnArray[IGNORED_UPRIGHT]++;
+        returnArray[IGNORED_UPRIGHT] = mesh.upright;
+        return framebuffer;
+    }
+
+    /**
+     * Writes the image and, if set in the options, its mipmap levels.
+     * @param framebuffer
+     * @param outputFile path to the output PNG
+     * @param style
+     * @param options
+     * @throws IOException
+     */
+    private static void write(Framebuffer framebuffer, File outputFile,
+     Style style, Options options) throws IOException {
+        framebuffer.write(outputFile);
+        if (options.mipmaps) {
+            MipChain.write(framebuffer, outputFile, style, options);
+        }
+    }
+
+    /**
+     * Replaces the color of each pixel covered by the low poly mesh with
+     * the normal of the high poly mesh where a ray cast from the cage,
+     * against the low poly normal, hits it first. Rows are processed
+     * in parallel.
+     * @param mesh low poly mesh
+     * @param high high poly mesh
+     * @param framebuffer
+     * @param ids index of the low poly polygon drawn at each pixel, or -1
+     * @param style
+     * @param cage distance from the low poly surface where rays start,
+     * in pixels
+     */
+    private static void cast(TriangleMesh mesh, Bvh high,
+     Framebuffer framebuffer, PixelStore ids, Style style, double cage) {
+        IntStream.range(0, framebuffer.height).parallel().forEach(y -> {
+            ColorBatch batch
+             = new ColorBatch(framebuffer, style, framebuffer.width);
+            double normal[] = new double[3];
+            double hit[] = new double[3];
+            int stack[] = new int[high.depth + 1];
+            long row = ((long) (framebuffer.height - y - 1))
+             * framebuffer.width;
+            int b;
+            int i;
+            int polygon;
+            double dx;
+            double dy;
+            double λ0;
+            double λ1;
+            double z;
+            for (int x = 0; x < framebuffer.width; x++) {
+                i = ids.getInt(row + x);
+                if (i < 0) {
+                    continue;
+                }
+                b = i * 4;
+                dx = x - mesh.positions[(i * 9) + 6];
+                dy = y - mesh.positions[(i * 9) + 7];
+                λ0 = (mesh.edges[b    ] * dx) + (mesh.edges[b + 1] * dy);
+                λ1 = (mesh.edges[b + 2] * dx) + (mesh.edges[b + 3] * dy);
+                mesh.getNormal(i, λ0, λ1, 1 - λ0 - λ1, normal);
+                z = framebuffer.depths.getFloat(row + x);
+                polygon = high.intersect(x + (normal[0] * cage),
+                 y + (normal[1] * cage), z + (normal[2] * cage),
+                 -normal[0], -normal[1], -normal[2], 2 * cage, hit, stack);
+                if (polygon < 0) {
+                    continue;
+                }
+                high.getNormal(polygon, hit[1], hit[2], normal);
+                batch.add(row + x, normal);
+            }
+            batch.flush();
+        });
+    }
+
+    /**
+     * Draws every polygon with a single sample per pixel, with the engine
+     * set in the options. Only pixels inside the framebuffer are drawn,
+     * so it may be a tile.
+     * @param mesh
+     * @param framebuffer
+     * @param style
+     * @param options
+     */
+    void draw(TriangleMesh mesh, Framebuffer framebuffer,
+     Style style, Options options) {
+        draw(mesh, framebuffer, framebuffer.left, framebuffer.bottom,
+         framebuffer.width, framebuffer.height, style, options);
+    }
+
+    /**
+     * Same as {@link #draw(io.github.guiritter.normalmapmaker.TriangleMesh,
+     * io.github.guiritter.normalmapmaker.Framebuffer,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)}, with splats clamped
+     * into a rectangle of the framebuffer instead of the whole of it, so
+     * meshes packed next to each other stay in their own rectangles.
+     * @param mesh
+     * @param framebuffer
+     * @param left column of the rectangle's leftmost pixels
+     * @param bottom row of the rectangle's bottom pixels
+     * @param width
+     * @param height
+     * @param style
+     * @param options
+     */
+    private void draw(TriangleMesh mesh, Framebuffer framebuffer, int left,
+     int bottom, int width, int height, Style style, Options options) {
+        if (options.engine == Options.ENGINE_FIXED) {
+            ColorBatch batch
+             = new ColorBatch(framebuffer, style, framebuffer.width);
+            double normal[] = new double[3];
+            for (int i = 0; i < mesh.splatStart; i++) {
+                FixedPointRasterizer.rasterize(
+                 mesh, i, framebuffer, style, batch, normal);
+                setProgressValue(3, i);
+            }
+        } else {
+            rasterize(mesh, framebuffer, style, null);
+        }
+        splat(mesh, framebuffer, left, bottom, width, height, style);
+    }
+
+    /**
+     * Finds the XY limits of the valid polygons.
+     * @param positions X, Y and Z of each vertex of each polygon,
+     * nine values per polygon
+     * @param valid which polygons to consider
+     * @param polygonCount amount of polygons
+     * @return the limits, indexed by {@link TriangleMesh#maximumX},
+     * {@link TriangleMesh#maximumY}, {@link TriangleMesh#minimumX}
+     * and {@link TriangleMesh#minimumY}
+     */
+    private static double[] limits(float positions[], boolean valid[],
+     int polygonCount) {
+        int polygonI;
+        int vertexI;
+        double limits[] = new double[4];
+        limits[maximumX] = Double.NEGATIVE_INFINITY;
+        limits[maximumY] = Double.NEGATIVE_INFINITY;
+        limits[minimumX] = Double.POSITIVE_INFINITY;
+        limits[minimumY] = Double.POSITIVE_INFINITY;
+        for (polygonI = 0; polygonI < polygonCount; polygonI++) {
+            if (!valid[polygonI]) {
                 continue;
             }
+            for (vertexI = 0; vertexI < 3; vertexI++) {
+                limits[maximumX] = Math.max(limits[maximumX],
+                 positions[(polygonI * 9) + (vertexI * 3)]);
+                limits[maximumY] = Math.max(limits[maximumY],
+                 positions[(polygonI * 9) + (vertexI * 3) + 1]);
+                limits[minimumX] = Math.min(limits[minimumX],
+                 positions[(polygonI * 9) + (vertexI * 3)]);
+                limits[minimumY] = Math.min(limits[minimumY],
+                 positions[(polygonI * 9) + (vertexI * 3) + 1]);
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * Column or row of the pixel corner nearest to a polygon's centroid,
+     * where {@link #splat(io.github.guiritter.normalmapmaker.TriangleMesh,
+     * io.github.guiritter.normalmapmaker.Framebuffer,
+     * io.github.guiritter.normalmapmaker.style.Style)} draws it, before
+     * being clamped into the image.
+     * @param positions X, Y and Z of each vertex of each polygon,
+     * nine values per polygon
+     * @param polygon polygon index
+     * @param axis zero for the column, one for the row
+     * @return
+     */
+    static int getSplatPixel(float positions[], int polygon, int axis) {
+        int o = (polygon * 9) + axis;
+        return (int) Math.round((positions[o] + positions[o + 3]
+         + positions[o + 6]) * (1d / 3d));
+    }
+
+    /**
+     * Draws every polygon with a single sample at each pixel's corner.
+     * @param mesh
+     * @param framebuffer
+     * @param style
+     * @param ids receives the index of the polygon drawn at each pixel,
+     * or null
+     */
+    private void rasterize(TriangleMesh mesh, Framebuffer framebuffer,
+     Style style, PixelStore ids) {
+        ColorBatch batch
+         = new ColorBatch(framebuffer, style, framebuffer.width);
+        int color[] = new int[1];
+        int packedNormal = 0;
+        double normal[] = new double[3];
+        int x;
+        int y;
+        long row;
+        int left = framebuffer.left;
+        int right = left + framebuffer.width - 1;
+        int bottom = framebuffer.bottom;
+        int top = bottom + framebuffer.height - 1;
+        // iterate through the polygons
+        for (int i = 0; i < mesh.splatStart; i++) {
+            int b = i * 4;
+            double x2 = mesh.positions[(i * 9) + 6];
+            double y2 = mesh.positions[(i * 9) + 7];
+            double z2 = mesh.positions[(i * 9) + 8];
+            double e0 = mesh.edges[b    ];
+            double e1 = mesh.edges[b + 1];
+            double e2 = mesh.edges[b + 2];
+            double e3 = mesh.edges[b + 3];
+            double dzdx = mesh.depths[ i * 2     ];
+            double dzdy = mesh.depths[(i * 2) + 1];
+            boolean shaded = false;
+            double dx;
+            double dy;
+            double λ0;
+            double λ1;
+            double λ2;
+            float z;
             // iterate through the pixels
             // that will possibly be painted by this polygon
-            for (y = polygons[i].boundingBox[minimumY];
-             y <= polygons[i].boundingBox[maximumY]; y++) {
-                for (x = polygons[i].boundingBox[minimumX];
-                 x <= polygons[i].boundingBox[maximumX]; x++) {
-                    point = new Point3D(x, y, 0);
-                    if (!polygons[i].isPointInsideXY(point)) {
+            for (y = Math.max(bottom, mesh.bounds[b + minimumY]);
+             y <= Math.min(top, mesh.bounds[b + maximumY]); y++) {
+                dy = y - y2;
+                row = (((long) (top - y)) * framebuffer.width) - left;
+                for (x = Math.max(left, mesh.bounds[b + minimumX]);
+                 x <= Math.min(right, mesh.bounds[b + maximumX]); x++) {
+                    dx = x - x2;
+                    λ0 = (e0 * dx) + (e1 * dy);
+                    λ1 = (e2 * dx) + (e3 * dy);
+                    λ2 = 1 - λ0 - λ1;
+                    if ((λ0 < 0) || (λ1 < 0) || (λ2 < 0)) {
                         continue;
                     }
                     // only paints the pixel
                     // if it appears above the last painted one
-                    point = polygons[i].setZ(point);
-                    if (zBuffer[x][y] < point.getZ()) {
-                        zBuffer[x][y] = point.getZ();
+                    z = (float) (z2 + (dzdx * dx) + (dzdy * dy));
+                    if (framebuffer.depths.getFloat(row + x) < z) {
+                        framebuffer.depths.putFloat(row + x, z);
                     } else {
                         continue;
                     }
-                    style.getStyleColor(
-                     polygons[i].normalUnit.getX(),
-                     polygons[i].normalUnit.getY(),
-                     polygons[i].normalUnit.getZ(), color);
-                    raster.setPixel(x, outputHeight - y - 1, color);
+                    if (ids != null) {
+                        ids.putInt(row + x, i);
+                    }
+                    if (mesh.vertexNormals != null) {
+                        mesh.getNormal(i, λ0, λ1, λ2, normal);
+                        batch.add(row + x, normal);
+                        continue;
+                    }
+                    // facet normals are the same across the polygon
+                    if (!shaded) {
+                        mesh.getNormal(i, λ0, λ1, λ2, normal);
+                        style.getStyleColors(normal, color, 1);
+                        if (framebuffer.normals != null) {
+                            packedNormal = TriangleMesh.pack(
+                             normal[0], normal[1], normal[2]);
+                        }
+                        shaded = true;
+                    }
+                    framebuffer.put(row + x, color[0], packedNormal);
                 }
+                batch.flush();
             }
             setProgressValue(3, i);
         }
-        ImageIO.write(image, "png", outputFile);
-        return returnArray;
+    }
+
+    /**
+     * Draws every polygon after {@link TriangleMesh#splatStart} as a single
+     * sample at the pixel corner nearest to its centroid, clamped into a
+     * rectangle of the framebuffer.
+     * @param mesh
+     * @param framebuffer
+     * @param left column of the rectangle's leftmost pixels
+     * @param bottom row of the rectangle's bottom pixels
+     * @param width
+     * @param height
+     * @param style
+     */
+    private void splat(TriangleMesh mesh, Framebuffer framebuffer, int left,
+     int bottom, int width, int height, Style style) {
+        final double third = 1d / 3d;
+        // splats are written in order, so later ones still win
+        ColorBatch batch
+         = new ColorBatch(framebuffer, style, framebuffer.width);
+        double normal[] = new double[3];
+        float positions[] = mesh.positions;
+        int lastNormal = 0;
+        boolean shaded = false;
+        int top = framebuffer.bottom + framebuffer.height - 1;
+        int o;
+        int x;
+        int y;
+        long index;
+        float z;
+        for (int i = mesh.splatStart; i < mesh.count; i++) {
+            o = i * 9;
+            x = getSplatPixel(positions, i, 0);
+            y = getSplatPixel(positions, i, 1);
+            x = Math.max(left  , Math.min(left + width - 1, x));
+            y = Math.max(bottom, Math.min(bottom + height - 1, y));
+            z = (float) ((positions[o + 2] + positions[o + 5]
+             + positions[o + 8]) * third);
+            index = (((long) (top - y)) * framebuffer.width) + x
+             - framebuffer.left;
+            if (framebuffer.depths.getFloat(index) >= z) {
+                continue;
+            }
+            framebuffer.depths.putFloat(index, z);
+            // neighbor polygons often share the same facet normal
+            if ((mesh.vertexNormals != null) || (!shaded)
+             || (mesh.normals[i] != lastNormal)) {
+                mesh.getNormal(i, third, third, third, normal);
+                lastNormal = mesh.normals[i];
+                shaded = true;
+            }
+            batch.add(index, normal);
+            if ((i & 0xFFFF) == 0) {
+                setProgressValue(3, i);
+            }
+        }
+        batch.flush();
+        setProgressValue(3, Math.max(1, mesh.count - 1));
+    }
+
+    /**
+     * Estimates the memory a job needs, settles its storage if set to
+     * {@link Options#STORAGE_AUTO} and, if there is a
+     * {@link Options#memoryBudget}, waits until the job fits in it.
+     * @param mesh bytes estimated for the polygons
+     * @param outputWidth intended output width
+     * @param outputHeight intended output height
+     * @param options
+     * @param returnArray receives {@link #ERROR_TOO_BIG} if the job can't fit
+     * @return the job, to be closed by the caller, or null if it can't fit
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private static Job admit(long mesh, int outputWidth, int outputHeight,
+     Options options, long returnArray[]) throws InterruptedIOException {
+        MemoryBudget budget = options.memoryBudget;
+        long pixels = MemoryBudget.estimatePixels(
+         outputWidth, outputHeight, options);
+        long limit = budget == null ? Runtime.getRuntime().maxMemory()
+         : budget.getTotal();
+        Options settled = options;
+        if (options.storage == Options.STORAGE_AUTO) {
+            settled = options.copy();
+            settled.storage = ((mesh + pixels) <= limit) && ((((long)
+             outputWidth) * outputHeight) <= (Integer.MAX_VALUE - 8))
+             ? Options.STORAGE_HEAP : Options.STORAGE_MAPPED;
+        }
+        // scratch files don't count
+        long bytes = mesh
+         + (settled.storage == Options.STORAGE_MAPPED ? 0 : pixels);
+        if (((budget != null) || (options.storage == Options.STORAGE_AUTO))
+         && (bytes > limit)) {
+            returnArray[IGNORED_INVALID] = ERROR_TOO_BIG;
+            return null;
+        }
+        if (budget == null) {
+            return new Job(settled, 0);
+        }
+        try {
+            budget.acquire(bytes);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return new Job(settled, bytes);
+    }
+
+    /**
+     * @param reader an STL file, or null
+     * @return the amount of polygons in the first surface, or zero
+     */
+    private static int facets(STLFileReader reader) {
+        return (reader == null) || (reader.getNumOfFacets().length < 1)
+         ? 0 : reader.getNumOfFacets()[0];
+    }
+
+    /**
+     * Opens an STL file and checks that it has polygons.
+     * @param inputFile path to the input STL
+     * @param returnArray receives an error ID if there are no polygons
+     * @return the file, positioned at the first polygon, to be closed by
+     * the caller, or null if there are none
+     * @throws InvalidFormatException
+     * @throws IOException
+     */
+    private static STLFileReader open(File inputFile, long returnArray[])
+     throws InvalidFormatException, IOException {
+        STLFileReader reader = new STLFileReader(FileUrl.of(inputFile));
+        if (reader.getNumOfFacets().length < 1) {
+            returnArray[IGNORED_INVALID] = ERROR_NO_SURFACES;
+            reader.close();
+            return null;
+        }
+        if (reader.getNumOfFacets()[0] < 1) {
+            returnArray[IGNORED_INVALID] = ERROR_NO_POLYGONS;
+            reader.close();
+            return null;
+        }
+        return reader;
+    }
+
+    /**
+     * Opens an STL file, admits its job with {@link #admit(long, int, int,
+     * io.github.guiritter.normalmapmaker.Options, long[])} before anything
+     * big is allocated, and reads the polygons into it.
+     * @param inputFile path to the input STL
+     * @param highPolygonCount polygons in the high poly mesh, or zero
+     * @param outputWidth intended output width
+     * @param outputHeight intended output height
+     * @param options
+     * @param returnArray receives the count of polygons ignored and of
+     * normals replaced, or an error ID
+     * @return the job, to be closed by the caller,
+     * or null if there is nothing to render
+     * @throws InvalidFormatException
+     * @throws IOException
+     */
+    private Job start(File inputFile, int highPolygonCount,
+     int outputWidth, int outputHeight, Options options,
+     long returnArray[]) throws InvalidFormatException, IOException {
+        STLFileReader reader = open(inputFile, returnArray);
+        if (reader == null) {
+            return null;
+        }
+        try {
+            Job job = admit(MemoryBudget.estimateMesh(facets(reader),
+             highPolygonCount, options), outputWidth, outputHeight, options,
+             returnArray);
+            if (job == null) {
+                return null;
+            }
+            try {
+                job.soup = load(reader, job.options, returnArray);
+            } catch (IOException | RuntimeException | Error ex) {
+                job.close();
+                throw ex;
+            }
+            if (job.soup == null) {
+                job.close();
+                return null;
+            }
+            return job;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the polygons of an STL file, validates them and computes
+     * their normals as set in the options.
+     * @param reader as returned by {@link #open(java.io.File, long[])}
+     * @param options
+     * @param returnArray receives the count of polygons ignored and of
+     * normals replaced, or an error ID
+     * @return the polygons, or null if there are none to render
+     * @throws InvalidFormatException
+     * @throws IOException
+     */
+    private Soup load(STLFileReader reader, Options options,
+     long returnArray[]) throws InvalidFormatException, IOException {
+        int polygonCount = reader.getNumOfFacets()[0];
+        // progress bar initialization
+        {
+            int i = 0;
+            setProgressMaximum(i++, polygonCount - 1);
+            setProgressMaximum(i++, polygonCount - 1);
+            setProgressMaximum(i++, 1);
+            setProgressMaximum(i  , polygonCount - 1);
+            for (i = 0; i < PROGRESS_BAR_AMOUNT; i++) {
+                setProgressValue(i, 0);
+            }
+        }
+        System.out.println("facet array length: "
+         + reader.getNumOfFacets().length + "\n");
+        System.out.println(polygonCount + " facets\n");
+        // X, Y and Z of each vertex, nine values per polygon
+        float positions[] = new float[polygonCount * 9];
+        // X, Y and Z of each normal, three values per polygon
+        float normals[] = new float[polygonCount * 3];
+        boolean validArray[] = new boolean[polygonCount];
+        read(reader, positions, normals, polygonCount);
+        returnArray[IGNORED_INVALID] = Validator.validate(
+         positions, validArray, polygonCount);
+        if (returnArray[IGNORED_INVALID] >= polygonCount) {
+            for (int i = 0; i < PROGRESS_BAR_AMOUNT; i++) {
+                setProgressMaximum(i, 1);
+                setProgressValue(i, 1);
+            }
+            returnArray[IGNORED_INVALID] = ERROR_NO_VALID;
+            return null;
+        }
+        if (options.facetNormals != Options.FACET_NORMALS_FILE) {
+            returnArray[REPLACED_NORMALS] = FacetNormals.compute(
+             positions, normals, validArray, polygonCount,
+             options.facetNormals == Options.FACET_NORMALS_CHECK);
+        }
+        // welds the vertices and computes their normals
+        // before the positions are scaled
+        float vertexNormals[] = null;
+        if (options.normals != Options.NORMALS_FACET) {
+            vertexNormals = VertexNormals.compute(positions, normals,
+             validArray, polygonCount,
+             options.normals == Options.NORMALS_SMOOTH_ANGLE);
+        }
+        return new Soup(positions, normals, vertexNormals,
+         validArray, polygonCount);
+    }
+
+    /**
+     * Throws if an option is out of range.
+     * @param options
+     */
+    private static void validate(Options options) {
+        if (!Multisample.isSupported(options.samples)) {
+            throw new IllegalArgumentException(
+             "unsupported sample count: " + options.samples);
+        }
+        if ((options.normals < Options.NORMALS_FACET)
+         || (options.normals > Options.NORMALS_SMOOTH_ANGLE)) {
+            throw new IllegalArgumentException(
+             "unsupported normals mode: " + options.normals);
+        }
+        if ((options.facetNormals < Options.FACET_NORMALS_FILE)
+         || (options.facetNormals > Options.FACET_NORMALS_CHECK)) {
+            throw new IllegalArgumentException(
+             "unsupported facet normals mode: " + options.facetNormals);
+        }
+        if ((options.engine < Options.ENGINE_FLOATING)
+         || (options.engine > Options.ENGINE_FIXED)) {
+            throw new IllegalArgumentException(
+             "unsupported engine: " + options.engine);
+        }
+        if ((options.order < Options.ORDER_FILE)
+         || (options.order > Options.ORDER_HILBERT)) {
+            throw new IllegalArgumentException(
+             "unsupported order: " + options.order);
+        }
+        if ((options.highPoly != null) && (options.samples != 1)) {
+            throw new IllegalArgumentException(
+             "ray casting needs one sample per pixel");
+        }
+        if (!(options.cage > 0)) {
+            throw new IllegalArgumentException(
+             "unsupported cage distance: " + options.cage);
+        }
+        if (options.views.length < 1) {
+            throw new IllegalArgumentException("no views");
+        }
+        for (int view : options.views) {
+            if ((view < Options.VIEW_POSITIVE_Z)
+             || (view > Options.VIEW_NEGATIVE_Y)) {
+                throw new IllegalArgumentException(
+                 "unsupported view: " + view);
+            }
+        }
+        if (options.dilation < 0) {
+            throw new IllegalArgumentException(
+             "unsupported dilation: " + options.dilation);
+        }
+        if (options.workers < 0) {
+            throw new IllegalArgumentException(
+             "unsupported worker count: " + options.workers);
+        }
+        if ((options.workers > 0) && ((options.samples != 1)
+         || (options.highPoly != null))) {
+            throw new IllegalArgumentException(
+             "workers need one sample per pixel and no high poly mesh");
+        }
+        if (options.tileSize < 1) {
+            throw new IllegalArgumentException(
+             "unsupported tile size: " + options.tileSize);
+        }
+        if ((options.storage < Options.STORAGE_HEAP)
+         || (options.storage > Options.STORAGE_AUTO)) {
+            throw new IllegalArgumentException(
+             "unsupported storage: " + options.storage);
+        }
+    }
+
+    /**
+     * Reads every polygon of the first surface.
+     * @param reader
+     * @param positions receives X, Y and Z of each vertex of each polygon,
+     * nine values per polygon
+     * @param normals receives X, Y and Z of each polygon's normal,
+     * three values per polygon
+     * @param polygonCount amount of polygons
+     * @throws InvalidFormatException
+     * @throws IOException
+     */
+    private void read(STLFileReader reader, float positions[],
+     float normals[], int polygonCount)
+     throws InvalidFormatException, IOException {
+        double polygon[][] = new double[3][3];
+        double normal[] = new double[3];
+        int vertexI;
+        for (int polygonI = 0; polygonI < polygonCount; polygonI++) {
+            reader.getNextFacet(normal, polygon);
+            for (vertexI = 0; vertexI < 3; vertexI++) {
+                normals[(polygonI * 3) + vertexI]
+                 = (float) normal[vertexI];
+                positions[(polygonI * 9) + (vertexI * 3)    ]
+                 = (float) polygon[vertexI][0];
+                positions[(polygonI * 9) + (vertexI * 3) + 1]
+                 = (float) polygon[vertexI][1];
+                positions[(polygonI * 9) + (vertexI * 3) + 2]
+                 = (float) polygon[vertexI][2];
+            }
+            setProgressValue(0, polygonI);
+        }
+    }
+
+    /**
+     * Opens, reads and closes the mesh in {@link Options#highPoly}, as
+     * {@link #readHighPoly(org.j3d.loaders.stl.STLFileReader,
+     * io.github.guiritter.normalmapmaker.Options)} does.
+     * @param highPoly the file in {@link Options#highPoly}
+     * @param options
+     * @return the high poly mesh
+     * @throws InvalidFormatException
+     * @throws IOException
+     */
+    private Soup readHighPoly(File highPoly, Options options)
+     throws InvalidFormatException, IOException {
+        STLFileReader reader = new STLFileReader(FileUrl.of(highPoly));
+        try {
+            return readHighPoly(reader, options);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the mesh in {@link Options#highPoly} and computes its normals
+     * as set in the options.
+     * @param reader the file in {@link Options#highPoly}
+     * @param options
+     * @return the high poly mesh
+     * @throws InvalidFormatException
+     * @throws IOException
+     */
+    private Soup readHighPoly(STLFileReader reader, Options options)
+     throws InvalidFormatException, IOException {
+        int polygonCount = facets(reader);
+        float positions[] = new float[polygonCount * 9];
+        float normals[] = new float[polygonCount * 3];
+        boolean validArray[] = new boolean[polygonCount];
+        setProgressMaximum(0, Math.max(1, polygonCount - 1));
+        read(reader, positions, normals, polygonCount);
+        Validator.validate(positions, validArray, polygonCount);
+        if (options.facetNormals != Options.FACET_NORMALS_FILE) {
+            FacetNormals.compute(positions, normals, validArray, polygonCount,
+             options.facetNormals == Options.FACET_NORMALS_CHECK);
+        }
+        float vertexNormals[] = null;
+        if (options.normals != Options.NORMALS_FACET) {
+            vertexNormals = VertexNormals.compute(positions, normals,
+             validArray, polygonCount,
+             options.normals == Options.NORMALS_SMOOTH_ANGLE);
+        }
+        return new Soup(positions, normals, vertexNormals,
+         validArray, polygonCount);
+    }
+
+    /**
+     * Scales and translates the polygons, in parallel,
+     * so their coordinates match the available pixel indexes.
+     * @param positions X, Y and Z of each vertex of each polygon,
+     * nine values per polygon
+     * @param polygonCount amount of polygons
+     * @param translationX
+     * @param translationY
+     * @param scale
+     */
+    private static void transform(float positions[], int polygonCount,
+     double translationX, double translationY, double scale) {
+        IntStream.range(0, polygonCount * 3).parallel().forEach(v -> {
+            positions[ v * 3     ] = (float)
+             ((positions[ v * 3     ] - translationX) * scale);
+            positions[(v * 3) + 1] = (float)
+             ((positions[(v * 3) + 1] - translationY) * scale);
+            positions[(v * 3) + 2] = (float)
+             ( positions[(v * 3) + 2] * scale);
+        });
     }
 
     /**
@@ -284,8 +1320,147 @@ public abstract class Algorithm {
      */
     public abstract void setProgressValue(int index, int value);
 
-    static {
-        Style.list.add(new Standard());
-        Style.list.add(new WarThunder());
+    /**
+     * One mesh on its way to be written, with the settings it was admitted
+     * with and its share of {@link Options#memoryBudget}, which is given
+     * back when closed.
+     */
+    private static final class Job implements Closeable {
+
+        private long bytes;
+
+        /**
+         * The image once rendered, or null.
+         */
+        Framebuffer framebuffer = null;
+
+        /**
+         * Same as the job's options, except for a settled
+         * {@link Options#STORAGE_AUTO}.
+         */
+        final Options options;
+
+        /**
+         * The polygons until rendered, or null.
+         */
+        Soup soup = null;
+
+        @Override
+        public void close() throws IOException {
+            soup = null;
+            try {
+                if (framebuffer != null) {
+                    framebuffer.close();
+                    framebuffer = null;
+                }
+            } finally {
+                if ((bytes > 0) && (options.memoryBudget != null)) {
+                    options.memoryBudget.release(bytes);
+                    bytes = 0;
+                }
+            }
+        }
+
+        Job(Options options, long bytes) {
+            this.options = options;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Polygons as read from an STL file, with their normals,
+     * before being turned to a view and scaled.
+     */
+    private static final class Soup {
+
+        final int count;
+
+        /**
+         * X, Y and Z of each polygon's normal, three values per polygon.
+         */
+        private final float normals[];
+
+        /**
+         * X, Y and Z of each vertex of each polygon, nine values per polygon.
+         */
+        private final float positions[];
+
+        final boolean valid[];
+
+        /**
+         * X, Y and Z of the normal at each vertex of each polygon,
+         * nine values per polygon, or null.
+         */
+        private final float vertexNormals[];
+
+        /**
+         * Turns vectors so the view's direction points to +Z, in parallel.
+         * Every turn is a rotation, so the polygons' winding is kept.
+         * @param vectors X, Y and Z of each vector
+         * @param view one of the <code>VIEW</code> constants
+         * in {@link Options}
+         * @param inPlace whether to change the array instead of a copy
+         * @return the turned vectors
+         */
+        private static float[] turn(float vectors[], int view,
+         boolean inPlace) {
+            if (vectors == null) {
+                return null;
+            }
+            float turned[] = inPlace ? vectors : vectors.clone();
+            if (view == Options.VIEW_POSITIVE_Z) {
+                return turned;
+            }
+            IntStream.range(0, turned.length / 3).parallel().forEach(v -> {
+                int o = v * 3;
+                float x = turned[o    ];
+                float y = turned[o + 1];
+                float z = turned[o + 2];
+                switch (view) {
+                    case Options.VIEW_NEGATIVE_Z:
+                        turned[o    ] = -x;
+                        turned[o + 2] = -z;
+                        break;
+                    case Options.VIEW_POSITIVE_X:
+                        turned[o    ] = -z;
+                        turned[o + 2] = x;
+                        break;
+                    case Options.VIEW_NEGATIVE_X:
+                        turned[o    ] = z;
+                        turned[o + 2] = -x;
+                        break;
+                    case Options.VIEW_POSITIVE_Y:
+                        turned[o + 1] = -z;
+                        turned[o + 2] = y;
+                        break;
+                    default:
+                        turned[o + 1] = z;
+                        turned[o + 2] = -y;
+                        break;
+                }
+            });
+            return turned;
+        }
+
+        float[] normals(int view, boolean inPlace) {
+            return turn(normals, view, inPlace);
+        }
+
+        float[] positions(int view, boolean inPlace) {
+            return turn(positions, view, inPlace);
+        }
+
+        float[] vertexNormals(int view, boolean inPlace) {
+            return turn(vertexNormals, view, inPlace);
+        }
+
+        Soup(float positions[], float normals[], float vertexNormals[],
+         boolean valid[], int count) {
+            this.positions = positions;
+            this.normals = normals;
+            this.vertexNormals = vertexNormals;
+            this.valid = valid;
+            this.count = count;
+        }
     }
 }
@@ -0,0 +1,549 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Bounding volume hierarchy over the polygons of a mesh, for casting rays
+ * into it. Built top down in parallel, splitting each node where the
+ * surface area heuristic over binned centroids is lowest. Nodes are kept in
+ * flat primitive arrays, with both children of a node next to each other,
+ * and the polygons are copied in the order of the leaves, so each leaf
+ * reads a contiguous range.
+ * @author Guilherme Alan Ritter
+ */
+final class Bvh {
+
+    /**
+     * Amount of bins along each axis where splits are evaluated.
+     */
+    private static final int BINS = 16;
+
+    /**
+     * Nodes with at most this many polygons are always leaves.
+     */
+    private static final int LEAF = 4;
+
+    /**
+     * Nodes with more than this many polygons are split into leaves
+     * even when the heuristic finds them cheaper to keep.
+     */
+    private static final int LEAF_MAXIMUM = 16;
+
+    /**
+     * Nodes with more polygons than this build their children in parallel.
+     */
+    private static final int PARALLEL = 1 << 12;
+
+    /**
+     * Minimum X, Y and Z and maximum X, Y and Z of each node,
+     * six values per node.
+     */
+    private final float bounds[];
+
+    /**
+     * Amount of polygons in each leaf, or zero for nodes with children.
+     */
+    private final int counts[];
+
+    /**
+     * Amount of polygons.
+     */
+    public final int count;
+
+    /**
+     * Length of the longest path from the root to a leaf, plus one.
+     */
+    public final int depth;
+
+    /**
+     * Unit normal of each polygon, three values per polygon,
+     * in the order of the leaves.
+     */
+    private final float normals[];
+
+    /**
+     * Index of each leaf's first polygon, or of each other node's
+     * first child; the second child comes right after.
+     */
+    private final int offsets[];
+
+    /**
+     * X, Y and Z of each vertex of each polygon, nine values per polygon,
+     * in the order of the leaves.
+     */
+    private final float positions[];
+
+    /**
+     * Unit normal at each vertex of each polygon, nine values per polygon,
+     * in the order of the leaves, or null.
+     */
+    private final float vertexNormals[];
+
+    /**
+     * Computes the normal at a point inside a polygon.
+     * @param polygon polygon index returned by
+     * {@link #intersect(double, double, double, double, double, double,
+     * double, double[], int[])}
+     * @param u weight of the second vertex
+     * @param v weight of the third vertex
+     * @param normal receives X, Y and Z
+     */
+    public void getNormal(int polygon, double u, double v, double normal[]) {
+        int n = polygon * 3;
+        if (vertexNormals != null) {
+            int o = polygon * 9;
+            double w = 1 - u - v;
+            double x = (w * vertexNormals[o    ])
+             + (u * vertexNormals[o + 3]) + (v * vertexNormals[o + 6]);
+            double y = (w * vertexNormals[o + 1])
+             + (u * vertexNormals[o + 4]) + (v * vertexNormals[o + 7]);
+            double z = (w * vertexNormals[o + 2])
+             + (u * vertexNormals[o + 5]) + (v * vertexNormals[o + 8]);
+            double length = Math.sqrt((x * x) + (y * y) + (z * z));
+            if (length > 0d) {
+                normal[0] = x / length;
+                normal[1] = y / length;
+                normal[2] = z / length;
+                return;
+            }
+        }
+        normal[0] = normals[n    ];
+        normal[1] = normals[n + 1];
+        normal[2] = normals[n + 2];
+    }
+
+    /**
+     * Finds the closest polygon hit by a ray, from either side.
+     * @param originX
+     * @param originY
+     * @param originZ
+     * @param directionX
+     * @param directionY
+     * @param directionZ
+     * @param distance maximum distance along the ray,
+     * in multiples of the direction
+     * @param hit receives the distance along the ray and the weights of
+     * the second and third vertices at the closest hit point
+     * @param stack scratch array at least {@link #depth} long
+     * @return the polygon's index, or -1 if none was hit
+     */
+    public int intersect(double originX, double originY, double originZ,
+     double directionX, double directionY, double directionZ,
+     double distance, double hit[], int stack[]) {
+        if (count == 0) {
+            return -1;
+        }
+        double inverseX = 1 / directionX;
+        double inverseY = 1 / directionY;
+        double inverseZ = 1 / directionZ;
+        double closest = distance;
+        int found = -1;
+        int top = 0;
+        int node;
+        int child;
+        int i;
+        int end;
+        double near;
+        double far;
+        double t;
+        near = enter(0, originX, originY, originZ,
+         inverseX, inverseY, inverseZ, closest);
+        if (near == Double.POSITIVE_INFINITY) {
+            return -1;
+        }
+        stack[top++] = 0;
+        while (top > 0) {
+            node = stack[--top];
+            if (counts[node] > 0) {
+                end = offsets[node] + counts[node];
+                for (i = offsets[node]; i < end; i++) {
+                    t = triangle(i, originX, originY, originZ,
+                     directionX, directionY, directionZ, closest, hit);
+                    if (t < closest) {
+                        closest = t;
+                        found = i;
+                    }
+                }
+                continue;
+            }
+            child = offsets[node];
+            near = enter(child, originX, originY, originZ,
+             inverseX, inverseY, inverseZ, closest);
+            far = enter(child + 1, originX, originY, originZ,
+             inverseX, inverseY, inverseZ, closest);
+            // the nearest child is visited first
+            if (near > far) {
+                t = near;
+                near = far;
+                far = t;
+                child++;
+                if (far < Double.POSITIVE_INFINITY) {
+                    stack[top++] = child - 1;
+                }
+            } else if (far < Double.POSITIVE_INFINITY) {
+                stack[top++] = child + 1;
+            }
+            if (near < Double.POSITIVE_INFINITY) {
+                stack[top++] = child;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Distance along the ray where it enters a node's box.
+     * @return the distance, or positive infinity
+     * if the ray misses the box before <code>distance</code>
+     */
+    private double enter(int node, double originX, double originY,
+     double originZ, double inverseX, double inverseY, double inverseZ,
+     double distance) {
+        int b = node * 6;
+        double t0 = (bounds[b    ] - originX) * inverseX;
+        double t1 = (bounds[b + 3] - originX) * inverseX;
+        double near = Math.min(t0, t1);
+        double far = Math.max(t0, t1);
+        t0 = (bounds[b + 1] - originY) * inverseY;
+        t1 = (bounds[b + 4] - originY) * inverseY;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        t0 = (bounds[b + 2] - originZ) * inverseZ;
+        t1 = (bounds[b + 5] - originZ) * inverseZ;
+        near = Math.max(near, Math.min(t0, t1));
+        far = Math.min(far, Math.max(t0, t1));
+        // rays parallel to a face of the box and exactly on its plane
+        // give NaN and count as misses
+        if ((near <= far) && (far >= 0) && (near <= distance)) {
+            return Math.max(near, 0);
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Intersects a ray with a polygon using the Möller-Trumbore algorithm.
+     * @return the distance along the ray, or positive infinity
+     * if the ray misses the polygon before <code>distance</code>
+     */
+    private double triangle(int polygon, double originX, double originY,
+     double originZ, double directionX, double directionY,
+     double directionZ, double distance, double hit[]) {
+        int o = polygon * 9;
+        double e1x = positions[o + 3] - positions[o    ];
+        double e1y = positions[o + 4] - positions[o + 1];
+        double e1z = positions[o + 5] - positions[o + 2];
+        double e2x = positions[o + 6] - positions[o    ];
+        double e2y = positions[o + 7] - positions[o + 1];
+        double e2z = positions[o + 8] - positions[o + 2];
+        double px = (directionY * e2z) - (directionZ * e2y);
+        double py = (directionZ * e2x) - (directionX * e2z);
+        double pz = (directionX * e2y) - (directionY * e2x);
+        double determinant = (e1x * px) + (e1y * py) + (e1z * pz);
+        if (determinant == 0d) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double inverse = 1 / determinant;
+        double sx = originX - positions[o    ];
+        double sy = originY - positions[o + 1];
+        double sz = originZ - positions[o + 2];
+        double u = ((sx * px) + (sy * py) + (sz * pz)) * inverse;
+        if ((u < 0) || (u > 1)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double qx = (sy * e1z) - (sz * e1y);
+        double qy = (sz * e1x) - (sx * e1z);
+        double qz = (sx * e1y) - (sy * e1x);
+        double v = ((directionX * qx) + (directionY * qy)
+         + (directionZ * qz)) * inverse;
+        if ((v < 0) || ((u + v) > 1)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double t = ((e2x * qx) + (e2y * qy) + (e2z * qz)) * inverse;
+        if ((t < 0) || (t >= distance)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        hit[0] = t;
+        hit[1] = u;
+        hit[2] = v;
+        return t;
+    }
+
+    /**
+     * Builds the hierarchy over the valid polygons.
+     * @param positions X, Y and Z of each vertex of each polygon,
+     * nine values per polygon
+     * @param normals X, Y and Z of each polygon's normal,
+     * three values per polygon
+     * @param vertexNormals X, Y and Z of the normal at each vertex
+     * of each polygon, nine values per polygon, or null
+     * @param valid which polygons to keep
+     * @param polygonCount amount of polygons
+     */
+    public Bvh(float positions[], float normals[], float vertexNormals[],
+     boolean valid[], int polygonCount) {
+        int source[] = IntStream.range(0, polygonCount).parallel()
+         .filter(p -> valid[p]).toArray();
+        count = source.length;
+        // bounding box and centroid of each polygon
+        float boxes[] = new float[count * 6];
+        float centroids[] = new float[count * 3];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            int o = source[i] * 9;
+            for (int axis = 0; axis < 3; axis++) {
+                float a = positions[o + axis];
+                float b = positions[o + 3 + axis];
+                float c = positions[o + 6 + axis];
+                boxes[(i * 6) + axis] = Math.min(a, Math.min(b, c));
+                boxes[(i * 6) + 3 + axis] = Math.max(a, Math.max(b, c));
+                centroids[(i * 3) + axis] = (a + b + c) / 3f;
+            }
+        });
+        int capacity = Math.max(1, (count * 2) - 1);
+        bounds = new float[capacity * 6];
+        counts = new int[capacity];
+        offsets = new int[capacity];
+        int order[] = IntStream.range(0, count).toArray();
+        Builder builder = new Builder(boxes, centroids, order);
+        if (count > 0) {
+            ForkJoinPool.commonPool().invoke(builder.new Node(0, 0, count, 1));
+        }
+        depth = builder.depth.get();
+        this.positions = new float[count * 9];
+        this.normals = new float[count * 3];
+        this.vertexNormals
+         = vertexNormals == null ? null : new float[count * 9];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            int polygon = source[order[i]];
+            System.arraycopy(positions, polygon * 9,
+             this.positions, i * 9, 9);
+            System.arraycopy(normals, polygon * 3, this.normals, i * 3, 3);
+            if (vertexNormals != null) {
+                System.arraycopy(vertexNormals, polygon * 9,
+                 this.vertexNormals, i * 9, 9);
+            }
+        });
+    }
+
+    /**
+     * State shared by the tasks that build the nodes.
+     */
+    private final class Builder {
+
+        final float boxes[];
+
+        final float centroids[];
+
+        final AtomicInteger depth = new AtomicInteger(1);
+
+        /**
+         * Index of the next free pair of nodes.
+         */
+        final AtomicInteger next = new AtomicInteger(1);
+
+        /**
+         * Indexes of the polygons in {@link #boxes} and {@link #centroids},
+         * reordered so each node's polygons are contiguous.
+         */
+        final int order[];
+
+        Builder(float boxes[], float centroids[], int order[]) {
+            this.boxes = boxes;
+            this.centroids = centroids;
+            this.order = order;
+        }
+
+        /**
+         * Half the surface area of a box.
+         */
+        private double area(double box[], int b) {
+            double x = box[b + 3] - box[b    ];
+            double y = box[b + 4] - box[b + 1];
+            double z = box[b + 5] - box[b + 2];
+            if ((x < 0) || (y < 0) || (z < 0)) {
+                return 0;
+            }
+            return (x * y) + (y * z) + (z * x);
+        }
+
+        private void empty(double box[], int b) {
+            box[b    ] = Double.POSITIVE_INFINITY;
+            box[b + 1] = Double.POSITIVE_INFINITY;
+            box[b + 2] = Double.POSITIVE_INFINITY;
+            box[b + 3] = Double.NEGATIVE_INFINITY;
+            box[b + 4] = Double.NEGATIVE_INFINITY;
+            box[b + 5] = Double.NEGATIVE_INFINITY;
+        }
+
+        /**
+         * Grows the box at <code>b</code> to include the box at
+         * <code>o</code> of <code>other</code>.
+         */
+        private void grow(double box[], int b, float other[], int o) {
+            for (int axis = 0; axis < 3; axis++) {
+                box[b + axis] = Math.min(box[b + axis], other[o + axis]);
+                box[b + 3 + axis]
+                 = Math.max(box[b + 3 + axis], other[o + 3 + axis]);
+            }
+        }
+
+        private void grow(double box[], int b, double other[], int o) {
+            for (int axis = 0; axis < 3; axis++) {
+                box[b + axis] = Math.min(box[b + axis], other[o + axis]);
+                box[b + 3 + axis]
+                 = Math.max(box[b + 3 + axis], other[o + 3 + axis]);
+            }
+        }
+
+        /**
+         * Builds one node and, recursively, its children.
+         * Never serialized.
+         */
+        @SuppressWarnings("serial")
+        private final class Node extends RecursiveAction {
+
+            private final int begin;
+
+            private final int end;
+
+            private final int index;
+
+            private final int level;
+
+            Node(int index, int begin, int end, int level) {
+                this.index = index;
+                this.begin = begin;
+                this.end = end;
+                this.level = level;
+            }
+
+            @Override
+            protected void compute() {
+                double box[] = new double[6];
+                double centroidBox[] = new double[6];
+                empty(box, 0);
+                empty(centroidBox, 0);
+                int i;
+                int axis;
+                for (i = begin; i < end; i++) {
+                    grow(box, 0, boxes, order[i] * 6);
+                    for (axis = 0; axis < 3; axis++) {
+                        centroidBox[axis] = Math.min(centroidBox[axis],
+                         centroids[(order[i] * 3) + axis]);
+                        centroidBox[axis + 3] = Math.max(
+                         centroidBox[axis + 3],
+                         centroids[(order[i] * 3) + axis]);
+                    }
+                }
+                for (axis = 0; axis < 6; axis++) {
+                    bounds[(index * 6) + axis] = (float) box[axis];
+                }
+                depth.accumulateAndGet(level, Math::max);
+                int length = end - begin;
+                if (length <= LEAF) {
+                    leaf();
+                    return;
+                }
+                // evaluates the splits between bins along each axis
+                double binBoxes[] = new double[BINS * 6];
+                int binCounts[] = new int[BINS];
+                double rightAreas[] = new double[BINS];
+                int rightCounts[] = new int[BINS];
+                double accumulated[] = new double[6];
+                double bestCost = Double.POSITIVE_INFINITY;
+                int bestAxis = -1;
+                int bestBin = 0;
+                double extent;
+                double cost;
+                int bin;
+                int leftCount;
+                for (axis = 0; axis < 3; axis++) {
+                    extent = centroidBox[axis + 3] - centroidBox[axis];
+                    if (!(extent > 0)) {
+                        continue;
+                    }
+                    for (bin = 0; bin < BINS; bin++) {
+                        empty(binBoxes, bin * 6);
+                        binCounts[bin] = 0;
+                    }
+                    for (i = begin; i < end; i++) {
+                        bin = bin(order[i], axis, centroidBox[axis], extent);
+                        binCounts[bin]++;
+                        grow(binBoxes, bin * 6, boxes, order[i] * 6);
+                    }
+                    empty(accumulated, 0);
+                    leftCount = 0;
+                    for (bin = BINS - 1; bin > 0; bin--) {
+                        grow(accumulated, 0, binBoxes, bin * 6);
+                        leftCount += binCounts[bin];
+                        rightAreas[bin] = area(accumulated, 0);
+                        rightCounts[bin] = leftCount;
+                    }
+                    empty(accumulated, 0);
+                    leftCount = 0;
+                    for (bin = 0; bin < BINS - 1; bin++) {
+                        grow(accumulated, 0, binBoxes, bin * 6);
+                        leftCount += binCounts[bin];
+                        cost = (area(accumulated, 0) * leftCount)
+                         + (rightAreas[bin + 1] * rightCounts[bin + 1]);
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            bestAxis = axis;
+                            bestBin = bin;
+                        }
+                    }
+                }
+                if ((length <= LEAF_MAXIMUM)
+                 && (bestCost >= (area(box, 0) * length))) {
+                    leaf();
+                    return;
+                }
+                int middle;
+                if (bestAxis < 0) {
+                    // every centroid in the same place
+                    middle = (begin + end) >>> 1;
+                } else {
+                    extent = centroidBox[bestAxis + 3]
+                     - centroidBox[bestAxis];
+                    middle = begin;
+                    int swap;
+                    for (i = begin; i < end; i++) {
+                        if (bin(order[i], bestAxis, centroidBox[bestAxis],
+                         extent) <= bestBin) {
+                            swap = order[i];
+                            order[i] = order[middle];
+                            order[middle] = swap;
+                            middle++;
+                        }
+                    }
+                    if ((middle == begin) || (middle == end)) {
+                        middle = (begin + end) >>> 1;
+                    }
+                }
+                int child = next.getAndAdd(2);
+                offsets[index] = child;
+                counts[index] = 0;
+                Node left = new Node(child, begin, middle, level + 1);
+                Node right = new Node(child + 1, middle, end, level + 1);
+                if (length > PARALLEL) {
+                    invokeAll(left, right);
+                } else {
+                    left.compute();
+                    right.compute();
+                }
+            }
+
+            private int bin(int polygon, int axis,
+             double minimum, double extent) {
+                return Math.min(BINS - 1, (int) (BINS
+                 * ((centroids[(polygon * 3) + axis] - minimum) / extent)));
+            }
+
+            private void leaf() {
+                offsets[index] = begin;
+                counts[index] = end - begin;
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package io.github.guiritter.normalmapmaker;
+
+import static io.github.guiritter.normalmapmaker.Algorithm.ERROR_NO_POLYGONS;
+import static io.github.guiritter.normalmapmaker.Algorithm.ERROR_NO_SURFACES;
+import static io.github.guiritter.normalmapmaker.Algorithm.ERROR_NO_VALID;
+import static io.github.guiritter.normalmapmaker.Algorithm.ERROR_TOO_BIG;
+import static io.github.guiritter.normalmapmaker.Algorithm.IGNORED_INVALID;
+import static io.github.guiritter.normalmapmaker.Algorithm.IGNORED_UPRIGHT;
+import io.github.guiritter.normalmapmaker.style.Style;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.j3d.loaders.InvalidFormatException;
+
+/**
+ * Headless entry point. Makes a normal map from the command line without
+ * loading any of the graphics user interface, so it starts quickly and
+ * works where there is no display:
+ * <pre>
+ * java -cp NormalMapMaker.jar io.github.guiritter.normalmapmaker.Cli
+ *  [-width 1024] [-height 1024] [-style Standard] [other options]
+ *  input.stl output.png [input2.stl output2.png ...]
+ * </pre>
+ * More than one pair of files is run as a batch by
+ * {@link Algorithm#makeBatch(java.util.List, java.util.List, int, int,
+ * io.github.guiritter.normalmapmaker.style.Style,
+ * io.github.guiritter.normalmapmaker.Options)}.
+ * The other options are named after the fields in {@link Options} and take
+ * the lower case name of their constants, such as
+ * <code>-normals smooth_area</code> or <code>-views +Z,-X</code>.
+ * Storage is {@link Options#STORAGE_AUTO} unless set.
+ * Exits with 1 if the mesh can't be rendered and with 2 on bad arguments.
+ * @author Guilherme Alan Ritter
+ */
+@SuppressWarnings("CallToPrintStackTrace")
+public final class Cli {
+
+    private static final String USAGE = "usage: Cli [-width pixels]"
+     + " [-height pixels] [-style name] [-samples count]"
+     + " [-normals facet|smooth_area|smooth_angle]"
+     + " [-facetNormals file|geometry|check] [-engine floating|fixed]"
+     + " [-storage heap|direct|mapped|auto] [-memoryBudget bytes[k|m|g]]"
+     + " [-order file|morton|hilbert]"
+     + " [-splat] [-highPoly file.stl] [-cage fraction] [-views +Z,-Z,...]"
+     + " [-dilation pixels] [-mipmaps] [-batchReaders threads]"
+     + " [-batchRasterizers threads] [-batchWriters threads]"
+     + " [-batchQueue images] [-workers processes] [-tileSize pixels]"
+     + " input.stl output.png"
+     + " [input2.stl output2.png ...]";
+
+    private Cli() {}
+
+    /**
+     * Index of the value in the given names, ignoring case.
+     * @throws IllegalArgumentException if it isn't one of them
+     */
+    private static int choice(String option, String value,
+     String... names) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(value)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unsupported " + option + ": "
+         + value);
+    }
+
+    /**
+     * Parses an amount of bytes, optionally followed by <code>k</code>,
+     * <code>m</code> or <code>g</code> for powers of 1024.
+     * @throws IllegalArgumentException if it isn't one
+     */
+    private static long bytes(String value) {
+        int shift;
+        switch (value.isEmpty() ? ' '
+         : Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+            default:
+                return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1))
+         << shift;
+    }
+
+    /**
+     * Prints what was left out of a mesh, if anything.
+     * @param prefix printed before each message
+     * @param ignoredPolygons as returned by {@link Algorithm}
+     * @return whether the mesh was rendered
+     */
+    private static boolean report(String prefix, long ignoredPolygons[]) {
+        if (ignoredPolygons[IGNORED_INVALID] == ERROR_NO_SURFACES) {
+            System.err.println(prefix + "File has no valid surfaces.");
+            return false;
+        } else if (ignoredPolygons[IGNORED_INVALID] == ERROR_NO_POLYGONS) {
+            System.err.println(prefix + "File has no polygons.");
+            return false;
+        } else if (ignoredPolygons[IGNORED_INVALID] == ERROR_NO_VALID) {
+            System.err.println(prefix + "File has no valid polygons.");
+            return false;
+        } else if (ignoredPolygons[IGNORED_INVALID] == ERROR_TOO_BIG) {
+            System.err.println(prefix + "File is too big.");
+            return false;
+        } else if ((ignoredPolygons[IGNORED_INVALID] > 0)
+         || ignoredPolygons[IGNORED_UPRIGHT] > 0) {
+            System.err.println(prefix + ignoredPolygons[IGNORED_INVALID]
+             + " invalid polygon(s) ignored, "
+             + ignoredPolygons[IGNORED_UPRIGHT]
+             + " upright polygon(s) ignored.");
+        }
+        return true;
+    }
+
+    private static Style style(String name) {
+        for (Style style : Style.list) {
+            if (style.name.equalsIgnoreCase(name)) {
+                return style;
+            }
+        }
+        throw new IllegalArgumentException("unsupported style: " + name);
+    }
+
+    private static int[] views(String value) {
+        List<String> names = Arrays.asList(value.split(","));
+        int views[] = new int[names.size()];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = Options.VIEW_NAMES.indexOf(
+             names.get(i).trim().toUpperCase());
+            if (views[i] < 0) {
+                throw new IllegalArgumentException("unsupported view: "
+                 + names.get(i));
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Makes the normal map described by the arguments.
+     * @param args options followed by pairs of input and output files
+     * @return the exit status
+     */
+    public static int run(String args[]) {
+        Algorithm algorithm = new Algorithm() {
+
+            @Override
+            public void setProgressMaximum(int index, int maximumValue) {}
+
+            @Override
+            public void setProgressValue(int index, int value) {}
+        };
+        Options options = new Options();
+        options.storage = Options.STORAGE_AUTO;
+        int width = 1024;
+        int height = 1024;
+        Style style = null;
+        String option;
+        String value;
+        int i = 0;
+        try {
+            for (; (i < args.length) && args[i].startsWith("-"); i++) {
+                option = args[i];
+                switch (option) {
+                    case "-splat":
+                        options.splat = true;
+                        continue;
+                    case "-mipmaps":
+                        options.mipmaps = true;
+                        continue;
+                    default:
+                        break;
+                }
+                if (i == args.length - 1) {
+                    throw new IllegalArgumentException(
+                     "missing value for " + option);
+                }
+                value = args[++i];
+                switch (option) {
+                    case "-width":
+                        width = Integer.parseInt(value);
+                        break;
+                    case "-height":
+                        height = Integer.parseInt(value);
+                        break;
+                    case "-style":
+                        style = style(value);
+                        break;
+                    case "-samples":
+                        options.samples = Integer.parseInt(value);
+                        break;
+                    case "-normals":
+                        options.normals = choice("normals", value,
+                         "facet", "smooth_area", "smooth_angle");
+                        break;
+                    case "-facetNormals":
+                        options.facetNormals = choice("facet normals", value,
+                         "file", "geometry", "check");
+                        break;
+                    case "-engine":
+                        options.engine = choice("engine", value,
+                         "floating", "fixed");
+                        break;
+                    case "-storage":
+                        options.storage = choice("storage", value,
+                         "heap", "direct", "mapped", "auto");
+                        break;
+                    case "-memoryBudget":
+                        options.memoryBudget = new MemoryBudget(bytes(value));
+                        break;
+                    case "-order":
+                        options.order = choice("order", value,
+                         "file", "morton", "hilbert");
+                        break;
+                    case "-highPoly":
+                        options.highPoly = new File(value);
+                        break;
+                    case "-cage":
+                        options.cage = Double.parseDouble(value);
+                        break;
+                    case "-views":
+                        options.views = views(value);
+                        break;
+                    case "-dilation":
+                        options.dilation = Integer.parseInt(value);
+                        break;
+                    case "-batchReaders":
+                        options.batchReaders = Integer.parseInt(value);
+                        break;
+                    case "-batchRasterizers":
+                        options.batchRasterizers = Integer.parseInt(value);
+                        break;
+                    case "-batchWriters":
+                        options.batchWriters = Integer.parseInt(value);
+                        break;
+                    case "-batchQueue":
+                        options.batchQueue = Integer.parseInt(value);
+                        break;
+                    case "-workers":
+                        options.workers = Integer.parseInt(value);
+                        break;
+                    case "-tileSize":
+                        options.tileSize = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                         "unknown option: " + option);
+                }
+            }
+            if ((args.length - i < 2) || (((args.length - i) % 2) != 0)) {
+                throw new IllegalArgumentException(
+                 "expected pairs of input and output files");
+            }
+            if (style == null) {
+                style = style("Standard");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        List<File> inputFiles = new ArrayList<>();
+        List<File> outputFiles = new ArrayList<>();
+        for (; i < args.length; i += 2) {
+            inputFiles.add(new File(args[i]));
+            outputFiles.add(new File(args[i + 1]));
+        }
+        try {
+            if (inputFiles.size() == 1) {
+                return report("", algorithm.make(inputFiles.get(0),
+                 outputFiles.get(0), width, height, style, options)) ? 0 : 1;
+            }
+            long ignoredPolygons[][] = algorithm.makeBatch(inputFiles,
+             outputFiles, width, height, style, options);
+            int status = 0;
+            for (i = 0; i < ignoredPolygons.length; i++) {
+                if (!report(inputFiles.get(i) + ": ", ignoredPolygons[i])) {
+                    status = 1;
+                }
+            }
+            return status;
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return 2;
+        } catch (InvalidFormatException ex) {
+            ex.printStackTrace();
+            System.err.println("STL file not properly formatted.");
+            return 1;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.err.println("File system error.");
+            return 1;
+        }
+    }
+
+    /**
+     * Makes the normal map described by the arguments and exits with
+     * {@link #run(java.lang.String[])}'s status.
+     * @param args options followed by pairs of input and output files
+     */
+    public static void main(String args[]) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.guiritter.normalmapmaker;
+
+import io.github.guiritter.normalmapmaker.style.Style;
+
+/**
+ * Pixels waiting for their colors, so the style translates a whole row
+ * of normals in one call to
+ * {@link Style#getStyleColors(double[], int[], int)} instead of being
+ * called once per pixel. Pixels are written to the framebuffer in the order
+ * they were added, so one added later wins where both are the same.
+ * @author Guilherme Alan Ritter
+ */
+final class ColorBatch {
+
+    private final int colors[];
+
+    private int count = 0;
+
+    private final Framebuffer framebuffer;
+
+    private final long indexes[];
+
+    private final double normals[];
+
+    private final Style style;
+
+    /**
+     * Adds a pixel, first writing the ones already added if there's no
+     * room left.
+     * @param index pixel index
+     * @param normal
+     */
+    public void add(long index, double normal[]) {
+        if (count == indexes.length) {
+            flush();
+        }
+        indexes[count] = index;
+        normals[ count * 3     ] = normal[0];
+        normals[(count * 3) + 1] = normal[1];
+        normals[(count * 3) + 2] = normal[2];
+        count++;
+    }
+
+    /**
+     * Colors the pixels added since the last call and writes them,
+     * along with their normals if kept.
+     */
+    public void flush() {
+        if (count == 0) {
+            return;
+        }
+        style.getStyleColors(normals, colors, count);
+        for (int i = 0; i < count; i++) {
+            framebuffer.put(indexes[i], colors[i],
+             framebuffer.normals == null ? 0 : TriangleMesh.pack(
+              normals[i * 3], normals[(i * 3) + 1], normals[(i * 3) + 2]));
+        }
+        count = 0;
+    }
+
+    /**
+     * @param framebuffer where the pixels are written
+     * @param style
+     * @param capacity how many pixels are kept before being written,
+     * such as the width of a row
+     */
+    public ColorBatch(Framebuffer framebuffer, Style style, int capacity) {
+        this.framebuffer = framebuffer;
+        this.style = style;
+        colors = new int[capacity];
+        indexes = new long[capacity];
+        normals = new double[capacity * 3];
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+/**
+ * Extends the colors of the covered pixels over the background around
+ * them, so texture filtering and mipmaps don't blend in the background
+ * color. Each background pixel within the given distance of a covered one
+ * gets the color, and normal if kept, of the closest covered pixel,
+ * found with the jump flooding
+ * algorithm: one pass per power of two up to the distance, each over every
+ * pixel, with rows processed in parallel. Coverage is taken from the depths,
+ * which stay at negative infinity over the background.
+ * @author Guilherme Alan Ritter
+ */
+final class Dilation {
+
+    /**
+     * Marks pixels that haven't found a covered pixel yet, in place of
+     * its X.
+     */
+    private static final int NONE = -1;
+
+    private Dilation() {}
+
+    /**
+     * @param framebuffer
+     * @param distance how far, in pixels, to extend the covered pixels
+     * @param options where to keep the scratch buffers
+     * @throws IOException if the scratch file can't be created
+     */
+    public static void dilate(Framebuffer framebuffer, int distance,
+     Options options) throws IOException {
+        if (distance < 1) {
+            return;
+        }
+        int width = framebuffer.width;
+        int height = framebuffer.height;
+        long size = ((long) width) * height;
+        // X and Y of the closest covered pixel found for each pixel,
+        // in two planes so any image size fits
+        try (PixelStore aX = PixelStore.allocate(size, options);
+         PixelStore aY = PixelStore.allocate(size, options);
+         PixelStore bX = PixelStore.allocate(size, options);
+         PixelStore bY = PixelStore.allocate(size, options)) {
+            IntStream.range(0, height).parallel().forEach(y -> {
+                long row = ((long) y) * width;
+                for (int x = 0; x < width; x++) {
+                    if (framebuffer.depths.getFloat(row + x)
+                     == Float.NEGATIVE_INFINITY) {
+                        aX.putInt(row + x, NONE);
+                    } else {
+                        aX.putInt(row + x, x);
+                        aY.putInt(row + x, y);
+                    }
+                }
+            });
+            PixelStore sourceX = aX;
+            PixelStore sourceY = aY;
+            PixelStore targetX = bX;
+            PixelStore targetY = bY;
+            PixelStore swap;
+            // the steps add up to at least the distance
+            for (int step = Integer.highestOneBit(distance); step > 0;
+             step >>>= 1) {
+                flood(sourceX, sourceY, targetX, targetY, width, height,
+                 step);
+                swap = sourceX;
+                sourceX = targetX;
+                targetX = swap;
+                swap = sourceY;
+                sourceY = targetY;
+                targetY = swap;
+            }
+            PixelStore closestX = sourceX;
+            PixelStore closestY = sourceY;
+            long limit = ((long) distance) * distance;
+            IntStream.range(0, height).parallel().forEach(y -> {
+                long row = ((long) y) * width;
+                int seedX;
+                int seedY;
+                long seedIndex;
+                for (int x = 0; x < width; x++) {
+                    seedX = closestX.getInt(row + x);
+                    if (seedX == NONE) {
+                        continue;
+                    }
+                    seedY = closestY.getInt(row + x);
+                    if (((seedX == x) && (seedY == y))
+                     || (squaredDistance(x, y, seedX, seedY) > limit)) {
+                        continue;
+                    }
+                    seedIndex = (((long) seedY) * width) + seedX;
+                    framebuffer.colors.putInt(row + x,
+                     framebuffer.colors.getInt(seedIndex));
+                    if (framebuffer.normals != null) {
+                        framebuffer.normals.putInt(row + x,
+                         framebuffer.normals.getInt(seedIndex));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * One pass of the jump flooding algorithm: each pixel takes the closest
+     * of the covered pixels found by itself and by its eight neighbors
+     * <code>step</code> pixels away.
+     */
+    private static void flood(PixelStore sourceX, PixelStore sourceY,
+     PixelStore targetX, PixelStore targetY, int width, int height,
+     int step) {
+        IntStream.range(0, height).parallel().forEach(y -> {
+            long row = ((long) y) * width;
+            int bestX;
+            int bestY;
+            long bestDistance;
+            int seedX;
+            int seedY;
+            long seedDistance;
+            int nx;
+            int ny;
+            for (int x = 0; x < width; x++) {
+                bestX = NONE;
+                bestY = 0;
+                bestDistance = Long.MAX_VALUE;
+                for (ny = y - step; ny <= y + step; ny += step) {
+                    if ((ny < 0) || (ny >= height)) {
+                        continue;
+                    }
+                    for (nx = x - step; nx <= x + step; nx += step) {
+                        if ((nx < 0) || (nx >= width)) {
+                            continue;
+                        }
+                        seedX = sourceX.getInt((((long) ny) * width) + nx);
+                        if (seedX == NONE) {
+                            continue;
+                        }
+                        seedY = sourceY.getInt((((long) ny) * width) + nx);
+                        seedDistance = squaredDistance(x, y, seedX, seedY);
+                        if (seedDistance < bestDistance) {
+                            bestX = seedX;
+                            bestY = seedY;
+                            bestDistance = seedDistance;
+                        }
+                    }
+                }
+                targetX.putInt(row + x, bestX);
+                targetY.putInt(row + x, bestY);
+            }
+        });
+    }
+
+    private static long squaredDistance(int x0, int y0, int x1, int y1) {
+        long dx = x1 - x0;
+        long dy = y1 - y0;
+        return (dx * dx) + (dy * dy);
+    }
+}
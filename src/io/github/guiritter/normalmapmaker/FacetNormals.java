@@ -0,0 +1,72 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.util.stream.IntStream;
+
+/**
+ * Computes polygon normals from their vertices. Used for STL files saved
+ * without normals, such as those exported by Blender.
+ * @author Guilherme Alan Ritter
+ */
+final class FacetNormals {
+
+    /**
+     * Minimum cosine of the angle between a stored normal and the one
+     * computed from the vertices for the stored one to be kept.
+     */
+    public static final double TOLERANCE = Math.cos(Math.toRadians(10));
+
+    private FacetNormals() {}
+
+    /**
+     * Replaces the normals of the valid polygons, in parallel.
+     * @param positions X, Y and Z of each vertex of each polygon,
+     * nine values per polygon
+     * @param normals X, Y and Z of each polygon's normal,
+     * three values per polygon
+     * @param valid which polygons are processed
+     * @param count amount of polygons
+     * @param check whether to keep stored normals that agree
+     * with the vertices within {@link #TOLERANCE}
+     * @return the amount of normals replaced
+     */
+    public static long compute(float positions[], float normals[],
+     boolean valid[], int count, boolean check) {
+        return IntStream.range(0, count).parallel().filter(p -> {
+            if (!valid[p]) {
+                return false;
+            }
+            int o = p * 9;
+            int n = p * 3;
+            double e1x = positions[o + 3] - positions[o    ];
+            double e1y = positions[o + 4] - positions[o + 1];
+            double e1z = positions[o + 5] - positions[o + 2];
+            double e2x = positions[o + 6] - positions[o    ];
+            double e2y = positions[o + 7] - positions[o + 1];
+            double e2z = positions[o + 8] - positions[o + 2];
+            double x = (e1y * e2z) - (e1z * e2y);
+            double y = (e1z * e2x) - (e1x * e2z);
+            double z = (e1x * e2y) - (e1y * e2x);
+            double length = Math.sqrt((x * x) + (y * y) + (z * z));
+            if (length == 0d) {
+                return false;
+            }
+            x /= length;
+            y /= length;
+            z /= length;
+            if (check) {
+                double stored = Math.sqrt((normals[n] * normals[n])
+                 + (normals[n + 1] * normals[n + 1])
+                 + (normals[n + 2] * normals[n + 2]));
+                if ((stored > 0d) && ((((x * normals[n])
+                 + (y * normals[n + 1]) + (z * normals[n + 2])) / stored)
+                 >= TOLERANCE)) {
+                    return false;
+                }
+            }
+            normals[n    ] = (float) x;
+            normals[n + 1] = (float) y;
+            normals[n + 2] = (float) z;
+            return true;
+        }).count();
+    }
+}
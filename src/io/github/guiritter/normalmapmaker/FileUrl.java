@@ -0,0 +1,56 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+/**
+ * URLs for local files that only know how to open the file and tell its
+ * length. {@link org.j3d.loaders.stl.STLFileReader} reads everything
+ * through URLs, and the JDK's own file connections format the file's
+ * modification date while at it, which loads calendar and locale data and
+ * takes longer than the whole rest of a small run.
+ * @author Guilherme Alan Ritter
+ */
+final class FileUrl {
+
+    private FileUrl() {}
+
+    /**
+     * @param file
+     * @return a URL that opens the given file
+     * @throws MalformedURLException
+     */
+    public static URL of(File file) throws MalformedURLException {
+        return new URL(null, file.toURI().toString(), new URLStreamHandler() {
+
+            @Override
+            protected URLConnection openConnection(URL url) {
+                return new URLConnection(url) {
+
+                    @Override
+                    public void connect() {
+                        connected = true;
+                    }
+
+                    @Override
+                    public int getContentLength() {
+                        long length = file.length();
+                        return length > Integer.MAX_VALUE ? -1 : (int) length;
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        connect();
+                        return new FileInputStream(file);
+                    }
+                };
+            }
+        });
+    }
+}
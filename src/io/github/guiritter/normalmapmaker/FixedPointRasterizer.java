@@ -0,0 +1,169 @@
+package io.github.guiritter.normalmapmaker;
+
+import io.github.guiritter.normalmapmaker.style.Style;
+
+/**
+ * Rasterizes polygons with integer edge functions on vertices snapped to
+ * {@link #SUBPIXEL_BITS} bits of sub-pixel precision. The coverage test
+ * in the inner loop uses only integer additions, so results don't depend
+ * on floating point rounding. Samples exactly on an edge belong only to the
+ * polygon for which it is a top or left edge, in the mesh's XY plane,
+ * so pixels on edges shared by two polygons are drawn only once.
+ * @author Guilherme Alan Ritter
+ */
+final class FixedPointRasterizer {
+
+    public static final int SUBPIXEL_BITS = 8;
+
+    private static final int ONE = 1 << SUBPIXEL_BITS;
+
+    private FixedPointRasterizer() {}
+
+    /**
+     * Edge function of the edge from A to B at P; positive to the left of
+     * the edge.
+     */
+    private static long edge(long ax, long ay, long bx, long by,
+     long px, long py) {
+        return ((bx - ax) * (py - ay)) - ((by - ay) * (px - ax));
+    }
+
+    /**
+     * Bias that excludes samples exactly on the edge from A to B unless it
+     * is a top or left edge of a counterclockwise polygon.
+     */
+    private static long bias(long ax, long ay, long bx, long by) {
+        boolean left = by < ay;
+        boolean top = (by == ay) && (bx < ax);
+        return (left || top) ? 0 : -1;
+    }
+
+    private static long snap(float value) {
+        return Math.round(((double) value) * ONE);
+    }
+
+    /**
+     * Draws one polygon, sampling each pixel at its corner.
+     * @param mesh
+     * @param polygon polygon index
+     * @param framebuffer
+     * @param style
+     * @param batch where pixels with interpolated normals are colored
+     * @param normal scratch array for the normal
+     */
+    public static void rasterize(TriangleMesh mesh, int polygon,
+     Framebuffer framebuffer, Style style, ColorBatch batch,
+     double normal[]) {
+        int o = polygon * 9;
+        long x0 = snap(mesh.positions[o    ]);
+        long y0 = snap(mesh.positions[o + 1]);
+        long x1 = snap(mesh.positions[o + 3]);
+        long y1 = snap(mesh.positions[o + 4]);
+        long x2 = snap(mesh.positions[o + 6]);
+        long y2 = snap(mesh.positions[o + 7]);
+        long area = edge(x0, y0, x1, y1, x2, y2);
+        if (area == 0) {
+            return;
+        }
+        // vertex indexes, swapped to make the polygon counterclockwise
+        int v1 = 1;
+        int v2 = 2;
+        if (area < 0) {
+            long swap = x1;
+            x1 = x2;
+            x2 = swap;
+            swap = y1;
+            y1 = y2;
+            y2 = swap;
+            v1 = 2;
+            v2 = 1;
+            area = -area;
+        }
+        int xMinimum = (int) Math.max(framebuffer.left,
+         -Math.floorDiv(-Math.min(x0, Math.min(x1, x2)), ONE));
+        int yMinimum = (int) Math.max(framebuffer.bottom,
+         -Math.floorDiv(-Math.min(y0, Math.min(y1, y2)), ONE));
+        int xMaximum = (int) Math.min(
+         framebuffer.left + framebuffer.width - 1,
+         Math.floorDiv(Math.max(x0, Math.max(x1, x2)), ONE));
+        int yMaximum = (int) Math.min(
+         framebuffer.bottom + framebuffer.height - 1,
+         Math.floorDiv(Math.max(y0, Math.max(y1, y2)), ONE));
+        if ((xMinimum > xMaximum) || (yMinimum > yMaximum)) {
+            return;
+        }
+        // weights of vertices 0, v1 and v2 at the first sample
+        long px = ((long) xMinimum) * ONE;
+        long py = ((long) yMinimum) * ONE;
+        long w0Row = edge(x1, y1, x2, y2, px, py) + bias(x1, y1, x2, y2);
+        long w1Row = edge(x2, y2, x0, y0, px, py) + bias(x2, y2, x0, y0);
+        long w2Row = edge(x0, y0, x1, y1, px, py) + bias(x0, y0, x1, y1);
+        // steps per pixel
+        long w0StepX = -(y2 - y1) * ONE;
+        long w1StepX = -(y0 - y2) * ONE;
+        long w2StepX = -(y1 - y0) * ONE;
+        long w0StepY = (x2 - x1) * ONE;
+        long w1StepY = (x0 - x2) * ONE;
+        long w2StepY = (x1 - x0) * ONE;
+        // depth plane relative to the third vertex
+        double xOrigin = mesh.positions[o + 6];
+        double yOrigin = mesh.positions[o + 7];
+        double zOrigin = mesh.positions[o + 8];
+        double dzdx = mesh.depths[ polygon * 2     ];
+        double dzdy = mesh.depths[(polygon * 2) + 1];
+        double λ[] = new double[3];
+        boolean shaded = false;
+        int color[] = new int[1];
+        int packedNormal = 0;
+        long w0;
+        long w1;
+        long w2;
+        long row;
+        float z;
+        int x;
+        for (int y = yMinimum; y <= yMaximum; y++) {
+            w0 = w0Row;
+            w1 = w1Row;
+            w2 = w2Row;
+            row = (((long) (framebuffer.bottom + framebuffer.height - y - 1))
+             * framebuffer.width) - framebuffer.left;
+            for (x = xMinimum; x <= xMaximum; x++) {
+                if ((w0 | w1 | w2) >= 0) {
+                    z = (float) (zOrigin + (dzdx * (x - xOrigin))
+                     + (dzdy * (y - yOrigin)));
+                    if (framebuffer.depths.getFloat(row + x) < z) {
+                        framebuffer.depths.putFloat(row + x, z);
+                        // facet normals are the same across the polygon
+                        if ((!shaded) || (mesh.vertexNormals != null)) {
+                            λ[0 ] = ((double) w0) / area;
+                            λ[v1] = ((double) w1) / area;
+                            λ[v2] = ((double) w2) / area;
+                            mesh.getNormal(
+                             polygon, λ[0], λ[1], λ[2], normal);
+                        }
+                        if (mesh.vertexNormals != null) {
+                            batch.add(row + x, normal);
+                        } else {
+                            if (!shaded) {
+                                style.getStyleColors(normal, color, 1);
+                                if (framebuffer.normals != null) {
+                                    packedNormal = TriangleMesh.pack(
+                                     normal[0], normal[1], normal[2]);
+                                }
+                                shaded = true;
+                            }
+                            framebuffer.put(row + x, color[0], packedNormal);
+                        }
+                    }
+                }
+                w0 += w0StepX;
+                w1 += w1StepX;
+                w2 += w2StepX;
+            }
+            batch.flush();
+            w0Row += w0StepY;
+            w1Row += w1StepY;
+            w2Row += w2StepY;
+        }
+    }
+}
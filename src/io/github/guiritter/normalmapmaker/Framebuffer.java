@@ -0,0 +1,149 @@
+package io.github.guiritter.normalmapmaker;
+
+import io.github.guiritter.normalmapmaker.style.Style;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Output image colors and depths, row by row from the top.
+ * Colors are packed as ARGB, like in
+ * {@link java.awt.image.BufferedImage#TYPE_INT_ARGB}.
+ * Depths start at negative infinity; higher values are closer
+ * to the camera. May be a tile of a bigger image, in which case pixels
+ * keep their column and row in the whole image, counted from its bottom
+ * left corner, while only those inside the tile are stored.
+ * @author Guilherme Alan Ritter
+ */
+final class Framebuffer implements Closeable {
+
+    /**
+     * Row of the bottom pixels in the whole image, counted from its
+     * bottom, or zero if not a tile.
+     */
+    public final int bottom;
+
+    public final PixelStore colors;
+
+    public final PixelStore depths;
+
+    public final int height;
+
+    /**
+     * Column of the leftmost pixels in the whole image,
+     * or zero if not a tile.
+     */
+    public final int left;
+
+    /**
+     * Unit normal of each pixel, packed by
+     * {@link TriangleMesh#pack(double, double, double)},
+     * or null if not kept.
+     */
+    public final PixelStore normals;
+
+    public final int width;
+
+    @Override
+    public void close() throws IOException {
+        try {
+            colors.close();
+        } finally {
+            try {
+                depths.close();
+            } finally {
+                if (normals != null) {
+                    normals.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs a color from {@link io.github.guiritter.normalmapmaker.style.Style}
+     * as ARGB.
+     * @param color red, green, blue and alpha
+     * @return
+     */
+    public static int pack(int color[]) {
+        return Style.pack(color[0], color[1], color[2], color[3]);
+    }
+
+    /**
+     * Sets the color of a pixel and, if kept, its normal.
+     * @param index pixel index
+     * @param color packed by {@link #pack(int[])}
+     * @param normal packed by
+     * {@link TriangleMesh#pack(double, double, double)}
+     */
+    public void put(long index, int color, int normal) {
+        colors.putInt(index, color);
+        if (normals != null) {
+            normals.putInt(index, normal);
+        }
+    }
+
+    /**
+     * Writes the colors as a PNG file, streamed by {@link PngWriter}
+     * wherever they are kept, so writing doesn't load ImageIO or AWT.
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        PngWriter.write(colors, width, height, file);
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @param backgroundColor initial color of every pixel
+     * @param options where to keep the buffers and whether to keep normals
+     * @throws IOException if the scratch file can't be created
+     */
+    public Framebuffer(int width, int height, int backgroundColor[],
+     Options options) throws IOException {
+        this(0, 0, width, height, backgroundColor, options,
+         options.mipmaps);
+    }
+
+    /**
+     * A tile of a bigger image.
+     * @param left column of the leftmost pixels in the whole image
+     * @param bottom row of the bottom pixels in the whole image,
+     * counted from its bottom
+     * @param width
+     * @param height
+     * @param backgroundColor initial color of every pixel
+     * @param options where to keep the buffers
+     * @param keepNormals whether to keep a normal per pixel
+     * @throws IOException if the scratch file can't be created
+     */
+    public Framebuffer(int left, int bottom, int width, int height,
+     int backgroundColor[], Options options, boolean keepNormals)
+     throws IOException {
+        this.left = left;
+        this.bottom = bottom;
+        this.width = width;
+        this.height = height;
+        colors = PixelStore.allocate(((long) width) * height, options);
+        try {
+            depths = PixelStore.allocate(((long) width) * height, options);
+        } catch (IOException | RuntimeException | Error ex) {
+            colors.close();
+            throw ex;
+        }
+        try {
+            normals = keepNormals
+             ? PixelStore.allocate(((long) width) * height, options) : null;
+        } catch (IOException | RuntimeException | Error ex) {
+            try {
+                colors.close();
+            } finally {
+                depths.close();
+            }
+            throw ex;
+        }
+        colors.fill(pack(backgroundColor));
+        depths.fill(Float.floatToRawIntBits(Float.NEGATIVE_INFINITY));
+    }
+}
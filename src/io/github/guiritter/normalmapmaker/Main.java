@@ -15,6 +15,7 @@ import static io.github.guiritter.normalmapmaker.Algorithm.ERROR_NO_VALID;
 import static io.github.guiritter.normalmapmaker.GUI.ERROR_DIALOG_TITLE;
 import static io.github.guiritter.normalmapmaker.GUI.WARNING_DIALOG_TITLE;
 import static io.github.guiritter.normalmapmaker.Algorithm.ERROR_NO_SURFACES;
+import static io.github.guiritter.normalmapmaker.Algorithm.ERROR_TOO_BIG;
 
 /**
  * Topmost class in the hierarchy.
@@ -23,7 +24,7 @@ import static io.github.guiritter.normalmapmaker.Algorithm.ERROR_NO_SURFACES;
 @SuppressWarnings("CallToPrintStackTrace")
 public final class Main {
 
-    private static final Algorithm algorithm;
+    private static Algorithm algorithm;
 
     private static final String EXCEPTION_NO_FACETS
      = "File has no valid surfaces.";
@@ -34,9 +35,15 @@ public final class Main {
     private static final String EXCEPTION_NO_VALID
      = "File has no valid polygons.";
 
+    private static final String EXCEPTION_TOO_BIG = "File is too big.";
+
     private static final String FILE_EXTENSION = ".png";
 
-    private static final GUI<StyleItem> gui;
+    /**
+     * Only built by {@link #main(java.lang.String[])} without arguments,
+     * so the headless path never loads Swing.
+     */
+    private static GUI<StyleItem> gui;
 
     private static final Wrapper<File> inputFile = new Wrapper<>();
 
@@ -74,7 +81,7 @@ public final class Main {
         gui.setFieldText(textField, path);
     }
 
-    static {
+    private static void showGUI() {
         algorithm = new Algorithm() {
 
             @Override
@@ -106,11 +113,15 @@ public final class Main {
                      ERROR_DIALOG_TITLE, ERROR_MESSAGE);
                     return;
                 }
+                // images too big for the heap go to a scratch file,
+                // instead of failing once the heap is exhausted
+                Options options = new Options();
+                options.storage = Options.STORAGE_AUTO;
                 (new Thread(() -> {
                     try {
                         long[] ignoredPolygons = algorithm.make(inputFile.o,
                          outputFile.o, gui.getWidth(), gui.getHeight(),
-                         gui.getStyle().getValue());
+                         gui.getStyle().getValue(), options);
                         if (ignoredPolygons[IGNORED_INVALID]
                          == ERROR_NO_SURFACES) {
                             gui.showMessageDialog(EXCEPTION_NO_FACETS,
@@ -123,6 +134,10 @@ public final class Main {
                          == ERROR_NO_VALID) {
                             gui.showMessageDialog(EXCEPTION_NO_VALID,
                              ERROR_DIALOG_TITLE, ERROR_MESSAGE);
+                        } else if (ignoredPolygons[IGNORED_INVALID]
+                         == ERROR_TOO_BIG) {
+                            gui.showMessageDialog(EXCEPTION_TOO_BIG,
+                             ERROR_DIALOG_TITLE, ERROR_MESSAGE);
                         } else if ((ignoredPolygons[IGNORED_INVALID] > 0)
                          || ignoredPolygons[IGNORED_UPRIGHT] > 0) {
                             gui.showMessageDialog(
@@ -143,7 +158,7 @@ public final class Main {
                          ERROR_DIALOG_TITLE, ERROR_MESSAGE);
                     } catch (OutOfMemoryError err) {
                         err.printStackTrace();
-                        gui.showMessageDialog("File is too big.",
+                        gui.showMessageDialog(EXCEPTION_TOO_BIG,
                          ERROR_DIALOG_TITLE, ERROR_MESSAGE);
                     } catch (Exception ex) {
                         ex.printStackTrace();
@@ -158,8 +173,15 @@ public final class Main {
     }
 
     /**
-     * Shows the graphics user interface and makes it work.
+     * Shows the graphics user interface and makes it work. With arguments,
+     * runs {@link Cli} instead, without loading the interface.
      * @param args
      */
-    public static final void main(String args[]) {}
+    public static final void main(String args[]) {
+        if (args.length > 0) {
+            Cli.main(args);
+            return;
+        }
+        showGUI();
+    }
 }
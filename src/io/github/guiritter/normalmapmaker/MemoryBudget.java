@@ -0,0 +1,119 @@
+package io.github.guiritter.normalmapmaker;
+
+/**
+ * Bytes of memory shared by every job that uses it, such as several
+ * {@link Algorithm#make(java.io.File, java.io.File, int, int,
+ * io.github.guiritter.normalmapmaker.style.Style,
+ * io.github.guiritter.normalmapmaker.Options)} calls running at the same
+ * time or the files of a batch. Each job estimates up front how much it
+ * needs, from its facet count and output size, and only starts once that
+ * much is free, so concurrent jobs wait for each other instead of running
+ * the heap out. The estimates are rough upper bounds of the arrays and
+ * buffers a job keeps in the heap or in direct memory; scratch files
+ * don't count.
+ * @author Guilherme Alan Ritter
+ */
+public final class MemoryBudget {
+
+    private final long total;
+
+    private long used = 0;
+
+    /**
+     * Waits until the given amount of bytes is free and takes it.
+     * @param bytes at most {@link #getTotal()}
+     * @throws InterruptedException
+     */
+    synchronized void acquire(long bytes) throws InterruptedException {
+        while ((used + bytes) > total) {
+            wait();
+        }
+        used += bytes;
+    }
+
+    /**
+     * Estimates the bytes a job keeps for the polygons, at most, while
+     * reading, sorting and rasterizing them.
+     * @param polygonCount polygons in the input STL
+     * @param highPolygonCount polygons in the high poly STL, or zero
+     * @param options
+     * @return
+     */
+    static long estimateMesh(long polygonCount, long highPolygonCount,
+     Options options) {
+        boolean smooth = options.normals != Options.NORMALS_FACET;
+        int views = options.views.length;
+        // positions, normals and validity as read,
+        // and the vertex normals with the welding keys while computed
+        long read = 49 + (smooth ? 36 + 72 : 0);
+        // each view's copy, if more than one, and its rasterizer setup,
+        // with the sorting keys while sorted
+        long view = (views > 1 ? 48 + (smooth ? 36 : 0) : 0) + 44
+         + (smooth ? 12 : 0) + (options.order == Options.ORDER_FILE ? 0 : 20);
+        // the hierarchy's own copy of the polygons, with boxes and nodes
+        long highView = 48 + (smooth ? 36 : 0) + 36 + 16;
+        return (polygonCount * (read + (view * views)))
+         + (highPolygonCount * (read + (highView * views)));
+    }
+
+    /**
+     * Estimates the bytes a job keeps for the image, at most, while
+     * rasterizing, dilating and writing it.
+     * @param width
+     * @param height
+     * @param options
+     * @return
+     */
+    static long estimatePixels(long width, long height, Options options) {
+        long normals = options.mipmaps ? 4 : 0;
+        // colors, depths and normals, plus the largest of the buffers
+        // that don't outlive their step
+        long temporary = 0;
+        if (options.samples > 1) {
+            temporary = options.samples * (8 + normals);
+        }
+        if (options.highPoly != null) {
+            temporary = Math.max(temporary, 4);
+        }
+        if (options.dilation > 0) {
+            temporary = Math.max(temporary, 16);
+        }
+        if (options.mipmaps) {
+            // the next level and its dilation
+            temporary = Math.max(temporary, 7);
+        }
+        return width * height * (8 + normals + temporary)
+         * options.views.length;
+    }
+
+    /**
+     * @return bytes not taken by any job
+     */
+    public synchronized long getAvailable() {
+        return total - used;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Gives back bytes taken by {@link #acquire(long)}.
+     * @param bytes
+     */
+    synchronized void release(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * @param total bytes to share
+     */
+    public MemoryBudget(long total) {
+        if (total < 1) {
+            throw new IllegalArgumentException(
+             "unsupported memory budget: " + total);
+        }
+        this.total = total;
+    }
+}
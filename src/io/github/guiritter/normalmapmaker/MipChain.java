@@ -0,0 +1,116 @@
+package io.github.guiritter.normalmapmaker;
+
+import io.github.guiritter.normalmapmaker.style.Style;
+import java.io.File;
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+/**
+ * Makes the mipmap levels of a rendered image out of its normals instead of
+ * its colors, halving the size at each level down to a single pixel.
+ * Each pixel gets the average of the normals of the covered pixels under
+ * it, normalized again, so normals keep unit length and the background
+ * isn't blended in; pixels with nothing covered under them stay background.
+ * Rows are processed in parallel. Only the previous level is kept in memory.
+ * @author Guilherme Alan Ritter
+ */
+final class MipChain {
+
+    private MipChain() {}
+
+    /**
+     * Writes every level after the first to
+     * {@link Algorithm#getMipFile(java.io.File, int)}, dilated as set in
+     * {@link Options#dilation}, halved at each level.
+     * @param base first level, with normals
+     * @param outputFile path to the first level's PNG
+     * @param style
+     * @param options
+     * @throws IOException
+     */
+    public static void write(Framebuffer base, File outputFile, Style style,
+     Options options) throws IOException {
+        Framebuffer source = base;
+        Framebuffer target;
+        int level = 0;
+        try {
+            while ((source.width > 1) || (source.height > 1)) {
+                level++;
+                target = downsample(source, style, options);
+                if (source != base) {
+                    source.close();
+                }
+                source = target;
+                if (options.dilation > 0) {
+                    Dilation.dilate(target,
+                     (options.dilation + (1 << level) - 1) >> level, options);
+                }
+                target.write(Algorithm.getMipFile(outputFile, level));
+            }
+        } finally {
+            if (source != base) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Makes the next level. Odd rows and columns are spread over the
+     * neighbor pixels, so every pixel of the source is used.
+     */
+    private static Framebuffer downsample(Framebuffer source, Style style,
+     Options options) throws IOException {
+        int width = Math.max(1, source.width / 2);
+        int height = Math.max(1, source.height / 2);
+        Framebuffer target = new Framebuffer(width, height,
+         style.backgroundColor, options);
+        IntStream.range(0, height).parallel().forEach(y -> {
+            ColorBatch batch = new ColorBatch(target, style, width);
+            double normal[] = new double[3];
+            double sum[] = new double[3];
+            int yBegin = (int) ((((long) y) * source.height) / height);
+            int yEnd = (int) ((((long) y + 1) * source.height) / height);
+            int xBegin;
+            int xEnd;
+            int sourceX;
+            int sourceY;
+            long index;
+            float depth;
+            float closest;
+            for (int x = 0; x < width; x++) {
+                xBegin = (int) ((((long) x) * source.width) / width);
+                xEnd = (int) ((((long) x + 1) * source.width) / width);
+                sum[0] = 0;
+                sum[1] = 0;
+                sum[2] = 0;
+                closest = Float.NEGATIVE_INFINITY;
+                for (sourceY = yBegin; sourceY < yEnd; sourceY++) {
+                    for (sourceX = xBegin; sourceX < xEnd; sourceX++) {
+                        index = (((long) sourceY) * source.width) + sourceX;
+                        depth = source.depths.getFloat(index);
+                        if (depth == Float.NEGATIVE_INFINITY) {
+                            continue;
+                        }
+                        closest = Math.max(closest, depth);
+                        TriangleMesh.unpack(
+                         source.normals.getInt(index), normal);
+                        sum[0] += normal[0];
+                        sum[1] += normal[1];
+                        sum[2] += normal[2];
+                    }
+                }
+                if (closest == Float.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                // normalized like the normals kept in the framebuffer
+                TriangleMesh.unpack(
+                 TriangleMesh.pack(sum[0], sum[1], sum[2]), normal);
+                index = (((long) y) * width) + x;
+                target.depths.putFloat(index, closest);
+                batch.add(index, normal);
+            }
+            batch.flush();
+        });
+        return target;
+    }
+}
@@ -0,0 +1,323 @@
+package io.github.guiritter.normalmapmaker;
+
+import static io.github.guiritter.normalmapmaker.TriangleMesh.maximumX;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.maximumY;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.minimumX;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.minimumY;
+import io.github.guiritter.normalmapmaker.style.Style;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Multisample buffer. Each pixel holds several coverage samples, each with
+ * its own depth and color, but the color is computed only once per polygon
+ * per pixel. {@link #resolve(Framebuffer)} averages
+ * the samples into the final image. Rasterizing isn't thread safe, as rows
+ * are colored in scratch arrays shared by every polygon.
+ * @author Guilherme Alan Ritter
+ */
+final class Multisample implements Closeable {
+
+    /**
+     * Supported amounts of samples per pixel.
+     */
+    public static final int SAMPLE_COUNTS[] = new int[]{1, 2, 4, 8, 16};
+
+    /**
+     * Sample offsets in sixteenths of a pixel, as X and Y pairs, for each
+     * entry in {@link #SAMPLE_COUNTS}. These are the usual rotated grid
+     * patterns, so horizontal and vertical edges get distinct coverage
+     * levels.
+     */
+    private static final int PATTERNS[][] = new int[][]{
+        {0, 0},
+        {4, 4, -4, -4},
+        {-2, -6, 6, -2, -6, 2, 2, 6},
+        {1, -3, -1, 3, 5, 1, -3, -5, -5, 5, -7, -1, 3, 7, 7, -7},
+        {1, 1, -1, -3, -3, 2, 4, -1, -5, -2, 2, 5, 5, 3, 3, -5,
+         -2, 6, 0, -7, -4, -6, -6, 4, -8, 0, 7, -4, 6, 7, -7, -8}
+    };
+
+    /**
+     * Sample colors, packed as ARGB.
+     */
+    private final PixelStore colors;
+
+    /**
+     * Sample depths. Higher values are closer to the camera.
+     */
+    private final PixelStore depths;
+
+    /**
+     * Sample normals, packed by
+     * {@link TriangleMesh#pack(double, double, double)},
+     * or null if {@link Options#mipmaps} is off.
+     */
+    private final PixelStore normals;
+
+    private final int height;
+
+    /**
+     * First sample of each pixel colored in the current row.
+     */
+    private final long rowBases[];
+
+    /**
+     * Colors of the pixels in the current row, packed as ARGB.
+     */
+    private final int rowColors[];
+
+    /**
+     * Which samples of each pixel in the current row are covered,
+     * one bit per sample.
+     */
+    private final int rowMasks[];
+
+    /**
+     * X, Y and Z of the normal of each pixel in the current row.
+     */
+    private final double rowNormals[];
+
+    private final double offsetX[];
+
+    private final double offsetY[];
+
+    private final int samples;
+
+    private final int width;
+
+    /**
+     * Whether the given amount of samples per pixel is supported.
+     * @param samples
+     * @return
+     */
+    public static boolean isSupported(int samples) {
+        return Arrays.binarySearch(SAMPLE_COUNTS, samples) >= 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            colors.close();
+        } finally {
+            try {
+                depths.close();
+            } finally {
+                if (normals != null) {
+                    normals.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests every sample covered by the polygon's bounding box against it.
+     * The normal is computed at most once per pixel, and the style colors
+     * a whole row of pixels at once.
+     * @param mesh
+     * @param polygon polygon index
+     * @param style
+     */
+    public void rasterize(TriangleMesh mesh, int polygon, Style style) {
+        int b = polygon * 4;
+        // samples are offset by up to half a pixel,
+        // so neighbors of the bounding box may be covered too
+        int xMinimum = Math.max(mesh.bounds[b + minimumX] - 1, 0);
+        int xMaximum = Math.min(mesh.bounds[b + maximumX] + 1, width - 1);
+        int yMinimum = Math.max(mesh.bounds[b + minimumY] - 1, 0);
+        int yMaximum = Math.min(mesh.bounds[b + maximumY] + 1, height - 1);
+        if (mesh.bounds[b + minimumX] > mesh.bounds[b + maximumX]) {
+            return;
+        }
+        double x2 = mesh.positions[(polygon * 9) + 6];
+        double y2 = mesh.positions[(polygon * 9) + 7];
+        double z2 = mesh.positions[(polygon * 9) + 8];
+        double e0 = mesh.edges[b    ];
+        double e1 = mesh.edges[b + 1];
+        double e2 = mesh.edges[b + 2];
+        double e3 = mesh.edges[b + 3];
+        double dzdx = mesh.depths[ polygon * 2     ];
+        double dzdy = mesh.depths[(polygon * 2) + 1];
+        double dx;
+        double dy;
+        double λ0;
+        double λ1;
+        double λ2;
+        float z;
+        int x;
+        int y;
+        int s;
+        int mask;
+        int pixels;
+        int pixel;
+        int packedNormal;
+        long base;
+        double normal[] = new double[3];
+        for (y = yMinimum; y <= yMaximum; y++) {
+            pixels = 0;
+            for (x = xMinimum; x <= xMaximum; x++) {
+                base = ((((long) y) * width) + x) * samples;
+                mask = 0;
+                for (s = 0; s < samples; s++) {
+                    dx = x + offsetX[s] - x2;
+                    dy = y + offsetY[s] - y2;
+                    λ0 = (e0 * dx) + (e1 * dy);
+                    λ1 = (e2 * dx) + (e3 * dy);
+                    λ2 = 1 - λ0 - λ1;
+                    if ((λ0 < 0) || (λ1 < 0) || (λ2 < 0)) {
+                        continue;
+                    }
+                    z = (float) (z2 + (dzdx * dx) + (dzdy * dy));
+                    if (depths.getFloat(base + s) >= z) {
+                        continue;
+                    }
+                    depths.putFloat(base + s, z);
+                    if (mask == 0) {
+                        mesh.getNormal(polygon, λ0, λ1, λ2, normal);
+                        rowNormals[ pixels * 3     ] = normal[0];
+                        rowNormals[(pixels * 3) + 1] = normal[1];
+                        rowNormals[(pixels * 3) + 2] = normal[2];
+                    }
+                    mask |= 1 << s;
+                }
+                if (mask != 0) {
+                    rowBases[pixels] = base;
+                    rowMasks[pixels] = mask;
+                    pixels++;
+                }
+            }
+            if (pixels == 0) {
+                continue;
+            }
+            style.getStyleColors(rowNormals, rowColors, pixels);
+            for (pixel = 0; pixel < pixels; pixel++) {
+                base = rowBases[pixel];
+                mask = rowMasks[pixel];
+                packedNormal = normals == null ? 0 : TriangleMesh.pack(
+                 rowNormals[ pixel * 3     ], rowNormals[(pixel * 3) + 1],
+                 rowNormals[(pixel * 3) + 2]);
+                for (s = 0; s < samples; s++) {
+                    if ((mask & (1 << s)) == 0) {
+                        continue;
+                    }
+                    colors.putInt(base + s, rowColors[pixel]);
+                    if (normals != null) {
+                        normals.putInt(base + s, packedNormal);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Averages each pixel's samples and writes the result to the
+     * framebuffer, flipping the Y axis, along with the depth of the farthest
+     * sample. That stays at negative infinity unless every sample is
+     * covered, so pixels blended with the background count as background.
+     * If normals are kept, those of the covered samples are averaged
+     * and normalized.
+     * @param framebuffer
+     */
+    public void resolve(Framebuffer framebuffer) {
+        int sum[] = new int[4];
+        double normal[] = new double[3];
+        double normalSum[] = new double[3];
+        float sampleDepth;
+        long base;
+        int packed;
+        int band;
+        int s;
+        float depth;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                base = ((((long) y) * width) + x) * samples;
+                Arrays.fill(sum, 0);
+                depth = Float.POSITIVE_INFINITY;
+                Arrays.fill(normalSum, 0);
+                for (s = 0; s < samples; s++) {
+                    sampleDepth = depths.getFloat(base + s);
+                    depth = Math.min(depth, sampleDepth);
+                    if ((normals != null)
+                     && (sampleDepth != Float.NEGATIVE_INFINITY)) {
+                        TriangleMesh.unpack(normals.getInt(base + s), normal);
+                        normalSum[0] += normal[0];
+                        normalSum[1] += normal[1];
+                        normalSum[2] += normal[2];
+                    }
+                    packed = colors.getInt(base + s);
+                    sum[0] +=  packed >>> 24;
+                    sum[1] += (packed >>> 16) & 0xFF;
+                    sum[2] += (packed >>>  8) & 0xFF;
+                    sum[3] +=  packed         & 0xFF;
+                }
+                packed = 0;
+                for (band = 0; band < 4; band++) {
+                    packed = (packed << 8)
+                     | ((sum[band] + (samples / 2)) / samples);
+                }
+                framebuffer.colors.putInt(
+                 (((long) (height - y - 1)) * width) + x, packed);
+                framebuffer.depths.putFloat(
+                 (((long) (height - y - 1)) * width) + x, depth);
+                if (normals != null) {
+                    framebuffer.normals.putInt(
+                     (((long) (height - y - 1)) * width) + x,
+                     TriangleMesh.pack(
+                      normalSum[0], normalSum[1], normalSum[2]));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param samples one of {@link #SAMPLE_COUNTS}
+     * @param width
+     * @param height
+     * @param backgroundColor initial color of every sample
+     * @param options where to keep the samples
+     * @throws IOException if the scratch file can't be created
+     */
+    public Multisample(int samples, int width, int height,
+     int backgroundColor[], Options options) throws IOException {
+        int patternI = Arrays.binarySearch(SAMPLE_COUNTS, samples);
+        if (patternI < 0) {
+            throw new IllegalArgumentException(
+             "unsupported sample count: " + samples);
+        }
+        this.samples = samples;
+        this.width = width;
+        this.height = height;
+        rowBases = new long[width];
+        rowColors = new int[width];
+        rowMasks = new int[width];
+        rowNormals = new double[width * 3];
+        offsetX = new double[samples];
+        offsetY = new double[samples];
+        for (int s = 0; s < samples; s++) {
+            offsetX[s] = PATTERNS[patternI][2 * s] / 16d;
+            offsetY[s] = PATTERNS[patternI][(2 * s) + 1] / 16d;
+        }
+        long size = ((long) width) * height * samples;
+        colors = PixelStore.allocate(size, options);
+        try {
+            depths = PixelStore.allocate(size, options);
+        } catch (IOException | RuntimeException | Error ex) {
+            colors.close();
+            throw ex;
+        }
+        try {
+            normals = options.mipmaps
+             ? PixelStore.allocate(size, options) : null;
+        } catch (IOException | RuntimeException | Error ex) {
+            try {
+                colors.close();
+            } finally {
+                depths.close();
+            }
+            throw ex;
+        }
+        colors.fill(Framebuffer.pack(backgroundColor));
+        depths.fill(Float.floatToRawIntBits(Float.NEGATIVE_INFINITY));
+    }
+}
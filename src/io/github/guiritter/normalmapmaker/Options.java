@@ -0,0 +1,328 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Optional settings for {@link io.github.guiritter.normalmapmaker.Algorithm}.
+ * The default values reproduce the original behavior.
+ * @author Guilherme Alan Ritter
+ */
+public final class Options implements Cloneable {
+
+    /**
+     * Coverage is tested with floating point barycentric coordinates,
+     * including samples on the edges of every polygon.
+     */
+    public static final int ENGINE_FLOATING = 0;
+
+    /**
+     * Coverage is tested with integer edge functions on vertices with
+     * {@link FixedPointRasterizer#SUBPIXEL_BITS} bits of sub-pixel precision,
+     * with a top-left fill rule.
+     */
+    public static final int ENGINE_FIXED = 1;
+
+    /**
+     * Polygon normals are used as stored in the STL file.
+     */
+    public static final int FACET_NORMALS_FILE = 0;
+
+    /**
+     * Polygon normals are computed from the vertices,
+     * assuming counterclockwise winding.
+     */
+    public static final int FACET_NORMALS_GEOMETRY = 1;
+
+    /**
+     * Polygon normals are computed from the vertices only where the stored
+     * ones are missing or disagree with the vertices.
+     */
+    public static final int FACET_NORMALS_CHECK = 2;
+
+    /**
+     * Every pixel gets the normal of the polygon stored in the STL file.
+     */
+    public static final int NORMALS_FACET = 0;
+
+    /**
+     * Normals are computed at each vertex, weighted by the area of the
+     * polygons around it, and interpolated across each polygon.
+     */
+    public static final int NORMALS_SMOOTH_AREA = 1;
+
+    /**
+     * Normals are computed at each vertex, weighted by the angle of the
+     * polygons around it, and interpolated across each polygon.
+     */
+    public static final int NORMALS_SMOOTH_ANGLE = 2;
+
+    /**
+     * Polygons are drawn in the order they are in the STL file.
+     */
+    public static final int ORDER_FILE = 0;
+
+    /**
+     * Polygons are drawn sorted along a Morton curve through the centroids
+     * of their XY projections, so consecutive polygons touch nearby pixels.
+     */
+    public static final int ORDER_MORTON = 1;
+
+    /**
+     * Polygons are drawn sorted along a Hilbert curve through the centroids
+     * of their XY projections, which keeps consecutive polygons closer than
+     * {@link #ORDER_MORTON}, at a slightly higher cost.
+     */
+    public static final int ORDER_HILBERT = 2;
+
+    /**
+     * Image and depth buffers are kept in the Java heap.
+     */
+    public static final int STORAGE_HEAP = 0;
+
+    /**
+     * Image and depth buffers are kept in direct buffers outside the heap.
+     */
+    public static final int STORAGE_DIRECT = 1;
+
+    /**
+     * Image and depth buffers are kept in a memory mapped scratch file,
+     * so they are only bounded by disk space.
+     */
+    public static final int STORAGE_MAPPED = 2;
+
+    /**
+     * Each job estimates up front how much memory it needs, from its facet
+     * count and output size, and keeps its buffers in the heap if that fits
+     * within {@link #memoryBudget}, or the maximum heap size if not set, and
+     * in a memory mapped scratch file as in {@link #STORAGE_MAPPED}
+     * otherwise. Jobs that don't fit even then aren't started.
+     */
+    public static final int STORAGE_AUTO = 3;
+
+    /**
+     * The camera looks at the mesh from +Z, with +X to the right and +Y up,
+     * as in the original behavior.
+     */
+    public static final int VIEW_POSITIVE_Z = 0;
+
+    /**
+     * The camera looks from -Z, with -X to the right and +Y up.
+     */
+    public static final int VIEW_NEGATIVE_Z = 1;
+
+    /**
+     * The camera looks from +X, with -Z to the right and +Y up.
+     */
+    public static final int VIEW_POSITIVE_X = 2;
+
+    /**
+     * The camera looks from -X, with +Z to the right and +Y up.
+     */
+    public static final int VIEW_NEGATIVE_X = 3;
+
+    /**
+     * The camera looks from +Y, with +X to the right and -Z up.
+     */
+    public static final int VIEW_POSITIVE_Y = 4;
+
+    /**
+     * The camera looks from -Y, with +X to the right and +Z up.
+     */
+    public static final int VIEW_NEGATIVE_Y = 5;
+
+    /**
+     * Names of the views, indexed by the <code>VIEW</code> constants.
+     */
+    public static final List<String> VIEW_NAMES = Collections.unmodifiableList(
+     Arrays.asList("+Z", "-Z", "+X", "-X", "+Y", "-Y"));
+
+    /**
+     * Empty pixels between neighbor meshes in the pages made by
+     * {@link Algorithm#makeAtlas(java.util.List, java.io.File, int, int,
+     * double, io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)}.
+     */
+    public int atlasPadding = 2;
+
+    /**
+     * How many images {@link Algorithm#makeBatch(java.util.List,
+     * java.util.List, int, int,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)} may keep waiting between
+     * two of its stages. Along with the threads, bounds how many meshes
+     * and images are in memory at once.
+     */
+    public int batchQueue = 2;
+
+    /**
+     * How many STL files {@link Algorithm#makeBatch(java.util.List,
+     * java.util.List, int, int,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)} rasterizes at once.
+     * Each rasterization already uses every core for some of its steps.
+     */
+    public int batchRasterizers = 1;
+
+    /**
+     * How many STL files {@link Algorithm#makeBatch(java.util.List,
+     * java.util.List, int, int,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)} reads and validates
+     * at once.
+     */
+    public int batchReaders = 1;
+
+    /**
+     * How many images {@link Algorithm#makeBatch(java.util.List,
+     * java.util.List, int, int,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)} writes at once.
+     */
+    public int batchWriters = 1;
+
+    /**
+     * Distance from the low poly surface where rays cast into
+     * {@link #highPoly} start, as a fraction of the output image's
+     * larger dimension. Rays search that far to either side of the surface.
+     */
+    public double cage = 0.02;
+
+    /**
+     * How many pixels the colors of the mesh are extended over the
+     * background around it, so texture filtering doesn't blend in the
+     * background color. Zero leaves the background untouched.
+     */
+    public int dilation = 0;
+
+    /**
+     * How pixel coverage is computed with a single sample per pixel.
+     * One of {@link #ENGINE_FLOATING} and {@link #ENGINE_FIXED}.
+     */
+    public int engine = ENGINE_FLOATING;
+
+    /**
+     * Where the polygon normals come from. One of
+     * {@link #FACET_NORMALS_FILE}, {@link #FACET_NORMALS_GEOMETRY}
+     * and {@link #FACET_NORMALS_CHECK}.
+     */
+    public int facetNormals = FACET_NORMALS_FILE;
+
+    /**
+     * High poly STL file to bake, or null. If set, the input file is taken
+     * as its low poly counterpart: for each pixel it covers, a ray is cast
+     * from {@link #cage} above its surface, against its normal, and the
+     * pixel gets the normal of the closest high poly polygon hit, or keeps
+     * the low poly normal if none is. Both files must share the same
+     * coordinates. {@link #facetNormals} and {@link #normals} apply to
+     * both. Needs one sample per pixel, and always uses
+     * {@link #ENGINE_FLOATING}.
+     */
+    public File highPoly = null;
+
+    /**
+     * Memory shared with other jobs, or null. If set, each mesh made by
+     * {@link Algorithm#make(java.io.File, java.io.File, int, int,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)} or in a batch reserves
+     * what it's estimated to need before being read, waiting while
+     * other jobs using the same budget hold too much of it, and gives it
+     * back once written. Jobs estimated to need more than the whole budget
+     * aren't started.
+     */
+    public MemoryBudget memoryBudget = null;
+
+    /**
+     * Whether to also write every mipmap level, down to a single pixel, to
+     * {@link Algorithm#getMipFile(java.io.File, int)}. Levels are made from
+     * the normals of the covered pixels, so they don't get shorter or blend
+     * in the background. Keeps a normal per pixel, one more buffer as big
+     * as the image.
+     */
+    public boolean mipmaps = false;
+
+    /**
+     * How the normals are computed. One of {@link #NORMALS_FACET},
+     * {@link #NORMALS_SMOOTH_AREA} and {@link #NORMALS_SMOOTH_ANGLE}.
+     */
+    public int normals = NORMALS_FACET;
+
+    /**
+     * In which order polygons are drawn. One of {@link #ORDER_FILE},
+     * {@link #ORDER_MORTON} and {@link #ORDER_HILBERT}. Where polygons
+     * overlap at exactly the same depth, the first one drawn wins, so
+     * those pixels may differ from one order to another.
+     */
+    public int order = ORDER_FILE;
+
+    /**
+     * Coverage samples per pixel. Must be one of
+     * {@link io.github.guiritter.normalmapmaker.Multisample#SAMPLE_COUNTS}.
+     * With one sample, each pixel is sampled only at its corner.
+     */
+    public int samples = 1;
+
+    /**
+     * Where to create the scratch file for {@link #STORAGE_MAPPED},
+     * or null for the default temporary directory.
+     */
+    public File scratchDirectory = null;
+
+    /**
+     * Whether polygons whose XY projection fits in a pixel are drawn
+     * as a single sample at their centroid, skipping the per polygon setup.
+     * Only used with one sample per pixel.
+     */
+    public boolean splat = false;
+
+    /**
+     * Where the image and depth buffers are kept. One of
+     * {@link #STORAGE_HEAP}, {@link #STORAGE_DIRECT},
+     * {@link #STORAGE_MAPPED} and {@link #STORAGE_AUTO}.
+     */
+    public int storage = STORAGE_HEAP;
+
+    /**
+     * Width and height, in pixels, of the tiles {@link #workers} render.
+     * Tiles on the right and top edges of the image may be smaller.
+     */
+    public int tileSize = 256;
+
+    /**
+     * Directions to look at the mesh from, each one of the
+     * <code>VIEW</code> constants. The mesh is read and validated once and
+     * every view is rendered concurrently. With a single view, the image is
+     * written to the output file; otherwise, each view is written to
+     * {@link Algorithm#getViewFile(java.io.File, int)}. Normals are
+     * written as seen from each view.
+     */
+    public int views[] = new int[]{VIEW_POSITIVE_Z};
+
+    /**
+     * How many worker processes to start, on this machine, to render the
+     * image in tiles of {@link #tileSize}, or zero to render it in this
+     * process. Each worker is a {@link Worker} in its own JVM, and gets only
+     * the polygons that touch its tiles. Tiles of a worker that dies are
+     * given to the others. Needs one sample per pixel and no
+     * {@link #highPoly}. Not used by {@link Algorithm#makeAtlas(
+     * java.util.List, java.io.File, int, int, double,
+     * io.github.guiritter.normalmapmaker.style.Style,
+     * io.github.guiritter.normalmapmaker.Options)}.
+     */
+    public int workers = 0;
+
+    /**
+     * @return a shallow copy, so a job can settle its own settings
+     */
+    Options copy() {
+        try {
+            return (Options) clone();
+        } catch (CloneNotSupportedException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    public Options() {}
+}
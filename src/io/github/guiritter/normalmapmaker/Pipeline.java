@@ -0,0 +1,212 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several items through three stages at the same time, such as
+ * reading, rasterizing and writing meshes, so while one item is in the
+ * last stage the next ones are already in the first two. Each stage has
+ * its own threads, and stages hand items over through bounded queues, so
+ * a fast stage waits for a slow one instead of piling items up. Items may
+ * finish in any order. If any stage fails, every thread is interrupted and
+ * the first failure is thrown; {@link Closeable} items left in the queues
+ * are closed.
+ * @author Guilherme Alan Ritter
+ */
+final class Pipeline {
+
+    /**
+     * One of the stages.
+     * @param <I> what the stage takes
+     * @param <O> what the stage hands to the next one
+     */
+    interface Stage<I, O> {
+
+        /**
+         * @param index item index
+         * @param input what the previous stage made of the item,
+         * or null for the first stage
+         * @return what to hand to the next stage
+         * @throws IOException
+         */
+        O apply(int index, I input) throws IOException;
+    }
+
+    /**
+     * An item between two stages.
+     */
+    private static final class Item<T> {
+
+        final int index;
+
+        final T value;
+
+        Item(int index, T value) {
+            this.index = index;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Tells a thread that the previous stage is done.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final Item END = new Item<>(-1, null);
+
+    private Pipeline() {}
+
+    /**
+     * Closes an item that won't reach the end of the pipeline,
+     * if it needs closing.
+     */
+    private static void discard(Object value) {
+        if (value instanceof Closeable) {
+            try {
+                ((Closeable) value).close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void end(BlockingQueue<Item<T>> queue, int threads)
+     throws InterruptedException {
+        for (int i = 0; i < threads; i++) {
+            queue.put(END);
+        }
+    }
+
+    private static <T> void put(BlockingQueue<Item<T>> queue, int index,
+     T value) throws InterruptedException {
+        try {
+            queue.put(new Item<>(index, value));
+        } catch (InterruptedException ex) {
+            discard(value);
+            throw ex;
+        }
+    }
+
+    /**
+     * Runs every item through the three stages and waits for them.
+     * @param <A> what the first stage makes
+     * @param <B> what the second stage makes
+     * @param count amount of items
+     * @param capacity how many items may wait between two stages
+     * @param firstThreads
+     * @param first
+     * @param secondThreads
+     * @param second
+     * @param thirdThreads
+     * @param third
+     * @throws IOException the first one thrown by a stage
+     */
+    public static <A, B> void run(int count, int capacity,
+     int firstThreads, Stage<Void, A> first,
+     int secondThreads, Stage<A, B> second,
+     int thirdThreads, Stage<B, Void> third) throws IOException {
+        BlockingQueue<Item<A>> firstQueue
+         = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<Item<B>> secondQueue
+         = new ArrayBlockingQueue<>(capacity);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger firstLeft = new AtomicInteger(firstThreads);
+        AtomicInteger secondLeft = new AtomicInteger(secondThreads);
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(
+         firstThreads + secondThreads + thirdThreads, runnable -> {
+            Thread thread = new Thread(runnable,
+             "pipeline-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ExecutorCompletionService<Void> service
+         = new ExecutorCompletionService<>(executor);
+        for (int t = 0; t < firstThreads; t++) {
+            service.submit(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < count) {
+                    put(firstQueue, index, first.apply(index, null));
+                }
+                if (firstLeft.decrementAndGet() == 0) {
+                    end(firstQueue, secondThreads);
+                }
+                return null;
+            });
+        }
+        for (int t = 0; t < secondThreads; t++) {
+            service.submit(() -> {
+                Item<A> item;
+                while ((item = firstQueue.take()) != END) {
+                    put(secondQueue, item.index,
+                     second.apply(item.index, item.value));
+                }
+                if (secondLeft.decrementAndGet() == 0) {
+                    end(secondQueue, thirdThreads);
+                }
+                return null;
+            });
+        }
+        for (int t = 0; t < thirdThreads; t++) {
+            service.submit(() -> {
+                Item<B> item;
+                while ((item = secondQueue.take()) != END) {
+                    third.apply(item.index, item.value);
+                }
+                return null;
+            });
+        }
+        Throwable failure = null;
+        try {
+            for (int t = firstThreads + secondThreads + thirdThreads; t > 0;
+             t--) {
+                service.take().get();
+            }
+        } catch (ExecutionException ex) {
+            failure = ex.getCause();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException();
+        }
+        executor.shutdownNow();
+        if (failure == null) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Item<A> item : firstQueue) {
+            discard(item.value);
+        }
+        for (Item<B> item : secondQueue) {
+            discard(item.value);
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException(failure);
+    }
+}
@@ -0,0 +1,245 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Large array of 32 bit values indexed by long, used for colors and depths.
+ * May be kept in the Java heap or outside of it, either in direct buffers
+ * or in a memory mapped scratch file, so its size is bounded by memory or
+ * disk instead of the maximum heap size, and the garbage collector never
+ * scans or copies it. Must be closed to release memory outside the heap.
+ * @author Guilherme Alan Ritter
+ */
+abstract class PixelStore implements Closeable {
+
+    /**
+     * Amount of values.
+     */
+    public final long size;
+
+    /**
+     * Allocates a store according to {@link Options#storage}. With
+     * {@link Options#STORAGE_AUTO}, the store is kept in the heap if it fits
+     * in what's left of it, and of {@link Options#memoryBudget} if set, and
+     * in a scratch file otherwise.
+     * @param size amount of values
+     * @param options
+     * @return
+     * @throws IOException if the scratch file can't be created
+     */
+    public static PixelStore allocate(long size, Options options)
+     throws IOException {
+        int storage = options.storage;
+        if (storage == Options.STORAGE_AUTO) {
+            Runtime runtime = Runtime.getRuntime();
+            long free = runtime.maxMemory() - runtime.totalMemory()
+             + runtime.freeMemory();
+            if (options.memoryBudget != null) {
+                free = Math.min(free, options.memoryBudget.getAvailable());
+            }
+            storage = ((size > Integer.MAX_VALUE - 8) || ((size * 4) > free))
+             ? Options.STORAGE_MAPPED : Options.STORAGE_HEAP;
+        }
+        switch (storage) {
+            case Options.STORAGE_DIRECT:
+                return new OffHeap(size, null);
+            case Options.STORAGE_MAPPED:
+                return new OffHeap(size, options.scratchDirectory == null
+                 ? new File(System.getProperty("java.io.tmpdir"))
+                 : options.scratchDirectory);
+            default:
+                if (size > Integer.MAX_VALUE - 8) {
+                    throw new OutOfMemoryError(
+                     "too big for the heap, use storage outside of it");
+                }
+                return new Heap((int) size);
+        }
+    }
+
+    /**
+     * Does nothing for stores in the heap.
+     */
+    @Override
+    public void close() throws IOException {}
+
+    public abstract void fill(int value);
+
+    public final float getFloat(long index) {
+        return Float.intBitsToFloat(getInt(index));
+    }
+
+    public abstract int getInt(long index);
+
+    public final void putFloat(long index, float value) {
+        putInt(index, Float.floatToRawIntBits(value));
+    }
+
+    public abstract void putInt(long index, int value);
+
+    PixelStore(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Store backed by an array in the heap.
+     */
+    static final class Heap extends PixelStore {
+
+        private final int array[];
+
+        @Override
+        public void fill(int value) {
+            Arrays.fill(array, value);
+        }
+
+        @Override
+        public int getInt(long index) {
+            return array[(int) index];
+        }
+
+        @Override
+        public void putInt(long index, int value) {
+            array[(int) index] = value;
+        }
+
+        Heap(int size) {
+            super(size);
+            array = new int[size];
+        }
+    }
+
+    /**
+     * Store backed by chunks of direct or memory mapped buffers,
+     * each up to 1 GiB long.
+     */
+    static final class OffHeap extends PixelStore {
+
+        /**
+         * Values per chunk, as a power of two.
+         */
+        private static final int SHIFT = 28;
+
+        private static final long MASK = (1L << SHIFT) - 1;
+
+        private final ByteBuffer chunks[];
+
+        private final RandomAccessFile scratch;
+
+        private final File scratchFile;
+
+        @Override
+        public void close() throws IOException {
+            for (int i = 0; i < chunks.length; i++) {
+                if (chunks[i] != null) {
+                    release(chunks[i]);
+                    chunks[i] = null;
+                }
+            }
+            if (scratch != null) {
+                scratch.close();
+                if (!scratchFile.delete()) {
+                    scratchFile.deleteOnExit();
+                }
+            }
+        }
+
+        @Override
+        public void fill(int value) {
+            int pattern[] = new int[1 << 14];
+            Arrays.fill(pattern, value);
+            for (ByteBuffer chunk : chunks) {
+                IntBuffer view = chunk.duplicate().order(chunk.order())
+                 .asIntBuffer();
+                while (view.remaining() > pattern.length) {
+                    view.put(pattern);
+                }
+                view.put(pattern, 0, view.remaining());
+            }
+        }
+
+        @Override
+        public int getInt(long index) {
+            return chunks[(int) (index >>> SHIFT)]
+             .getInt(((int) (index & MASK)) << 2);
+        }
+
+        @Override
+        public void putInt(long index, int value) {
+            chunks[(int) (index >>> SHIFT)]
+             .putInt(((int) (index & MASK)) << 2, value);
+        }
+
+        /**
+         * Frees a direct or mapped buffer right away instead of waiting for
+         * the garbage collector, where the runtime allows it.
+         */
+        private static void release(ByteBuffer buffer) {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                Method method = unsafeClass.getMethod(
+                 "invokeCleaner", ByteBuffer.class);
+                method.invoke(field.get(null), buffer);
+                return;
+            } catch (ReflectiveOperationException | RuntimeException ex) {}
+            try {
+                // Java 8
+                Method method = buffer.getClass().getMethod("cleaner");
+                method.setAccessible(true);
+                Object cleaner = method.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (ReflectiveOperationException | RuntimeException ex) {}
+        }
+
+        /**
+         * @param size amount of values
+         * @param directory where to create the scratch file,
+         * or null to use direct buffers
+         * @throws IOException
+         */
+        OffHeap(long size, File directory) throws IOException {
+            super(size);
+            chunks = new ByteBuffer[(int) ((size + MASK) >>> SHIFT)];
+            if (directory == null) {
+                scratch = null;
+                scratchFile = null;
+            } else {
+                scratchFile = File.createTempFile(
+                 "normalmapmaker", ".scratch", directory);
+                scratch = new RandomAccessFile(scratchFile, "rw");
+            }
+            try {
+                long remaining = size;
+                for (int i = 0; i < chunks.length; i++) {
+                    int length = (int) Math.min(remaining, MASK + 1);
+                    if (scratch == null) {
+                        chunks[i] = ByteBuffer.allocateDirect(length << 2);
+                    } else {
+                        chunks[i] = scratch.getChannel().map(
+                         FileChannel.MapMode.READ_WRITE,
+                         (((long) i) << SHIFT) << 2, ((long) length) << 2);
+                    }
+                    chunks[i].order(ByteOrder.nativeOrder());
+                    remaining -= length;
+                }
+            } catch (IOException | RuntimeException | Error ex) {
+                close();
+                throw ex;
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes 8 bit RGBA PNG files one row at a time,
+ * so the whole image never needs to be in the heap.
+ * @author Guilherme Alan Ritter
+ */
+final class PngWriter {
+
+    private static final byte SIGNATURE[] = new byte[]{
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * Size of each IDAT chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private PngWriter() {}
+
+    private static void chunk(DataOutputStream output, String type,
+     byte data[], int length) throws IOException {
+        CRC32 crc = new CRC32();
+        byte typeBytes[] = type.getBytes("US-ASCII");
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        output.writeInt(length);
+        output.write(typeBytes);
+        output.write(data, 0, length);
+        output.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Writes the colors as a PNG file, using the sub filter on every row.
+     * @param colors packed ARGB colors, row by row from the top
+     * @param width
+     * @param height
+     * @param file
+     * @throws IOException
+     */
+    public static void write(PixelStore colors, int width, int height,
+     File file) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(
+         new BufferedOutputStream(new FileOutputStream(file)))) {
+            output.write(SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            headerData.writeByte(8); // bit depth
+            headerData.writeByte(6); // RGBA
+            headerData.writeByte(0); // deflate
+            headerData.writeByte(0); // adaptive filtering
+            headerData.writeByte(0); // no interlace
+            chunk(output, "IHDR", header.toByteArray(), header.size());
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            OutputStream chunker = new OutputStream() {
+
+                private final byte buffer[] = new byte[CHUNK_SIZE];
+
+                private int length = 0;
+
+                @Override
+                public void close() throws IOException {
+                    if (length > 0) {
+                        chunk(output, "IDAT", buffer, length);
+                        length = 0;
+                    }
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte b[], int offset, int count)
+                 throws IOException {
+                    int part;
+                    while (count > 0) {
+                        part = Math.min(count, CHUNK_SIZE - length);
+                        System.arraycopy(b, offset, buffer, length, part);
+                        length += part;
+                        offset += part;
+                        count -= part;
+                        if (length == CHUNK_SIZE) {
+                            chunk(output, "IDAT", buffer, length);
+                            length = 0;
+                        }
+                    }
+                }
+            };
+            try (DeflaterOutputStream compressed = new DeflaterOutputStream(
+             chunker, deflater, CHUNK_SIZE)) {
+                byte row[] = new byte[1 + (width * 4)];
+                row[0] = 1; // sub filter
+                int argb;
+                int x;
+                int i;
+                for (int y = 0; y < height; y++) {
+                    long base = ((long) y) * width;
+                    for (x = 0; x < width; x++) {
+                        argb = colors.getInt(base + x);
+                        i = 1 + (x * 4);
+                        row[i    ] = (byte) (argb >>> 16);
+                        row[i + 1] = (byte) (argb >>>  8);
+                        row[i + 2] = (byte)  argb;
+                        row[i + 3] = (byte) (argb >>> 24);
+                    }
+                    // from right to left, so the left neighbors
+                    // are still unfiltered
+                    for (i = row.length - 1; i > 4; i--) {
+                        row[i] -= row[i - 4];
+                    }
+                    compressed.write(row);
+                }
+            } finally {
+                deflater.end();
+            }
+            chunk(output, "IEND", new byte[0], 0);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs rectangles into as few pages as it can with shelves: rectangles
+ * are placed from the tallest to the shortest, left to right along
+ * horizontal shelves, each as tall as its first rectangle. A rectangle goes
+ * into the first shelf of the first page where it fits, or opens a new
+ * shelf or a new page.
+ * @author Guilherme Alan Ritter
+ */
+final class RectanglePacker {
+
+    /**
+     * Return array offset for the page of each rectangle.
+     */
+    public static final int PAGE = 0;
+
+    /**
+     * Return array offset for the X of each rectangle's left column.
+     */
+    public static final int X = 1;
+
+    /**
+     * Return array offset for the Y of each rectangle's top row.
+     */
+    public static final int Y = 2;
+
+    private RectanglePacker() {}
+
+    /**
+     * @param widths width of each rectangle
+     * @param heights height of each rectangle
+     * @param pageWidth
+     * @param pageHeight
+     * @param padding empty pixels between neighbor rectangles
+     * @return page, X and Y of each rectangle, three values per rectangle,
+     * indexed by {@link #PAGE}, {@link #X} and {@link #Y}
+     * @throws IllegalArgumentException if a rectangle is bigger than a page
+     */
+    public static int[] pack(int widths[], int heights[],
+     int pageWidth, int pageHeight, int padding) {
+        int count = widths.length;
+        Integer order[] = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            if ((widths[i] > pageWidth) || (heights[i] > pageHeight)) {
+                throw new IllegalArgumentException("rectangle " + i + " ("
+                 + widths[i] + "x" + heights[i] + ") is bigger than a page");
+            }
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(heights[b], heights[a]));
+        // top, height and next free X of each shelf; next free Y of each page
+        List<int[]> shelves = new ArrayList<>();
+        List<Integer> shelfPages = new ArrayList<>();
+        List<Integer> pageBottoms = new ArrayList<>();
+        int placements[] = new int[count * 3];
+        int page;
+        int shelf;
+        int s[];
+        for (int i : order) {
+            for (shelf = 0; shelf < shelves.size(); shelf++) {
+                s = shelves.get(shelf);
+                if ((heights[i] <= s[1])
+                 && ((s[2] + widths[i]) <= pageWidth)) {
+                    break;
+                }
+            }
+            if (shelf == shelves.size()) {
+                for (page = 0; page < pageBottoms.size(); page++) {
+                    if ((pageBottoms.get(page) + heights[i]) <= pageHeight) {
+                        break;
+                    }
+                }
+                if (page == pageBottoms.size()) {
+                    pageBottoms.add(0);
+                }
+                shelves.add(new int[]{pageBottoms.get(page), heights[i], 0});
+                shelfPages.add(page);
+                pageBottoms.set(page,
+                 pageBottoms.get(page) + heights[i] + padding);
+            }
+            s = shelves.get(shelf);
+            placements[(i * 3) + PAGE] = shelfPages.get(shelf);
+            placements[(i * 3) + X] = s[2];
+            placements[(i * 3) + Y] = s[0];
+            s[2] += widths[i] + padding;
+        }
+        return placements;
+    }
+}
@@ -0,0 +1,165 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Sorts polygons by the position of their centroid's XY projection along
+ * a Morton (Z order) or Hilbert curve, so polygons drawn one after the other
+ * touch nearby pixels and reuse the cache lines of the image and depth
+ * buffers. Each polygon gets a 32 bit code, packed with its index in a long
+ * key, and the keys are sorted by a parallel least significant digit radix
+ * sort, one byte of the code per pass.
+ * @author Guilherme Alan Ritter
+ */
+final class SpatialSort {
+
+    /**
+     * Bits per axis of the quantized centroids.
+     */
+    private static final int BITS = 16;
+
+    private static final int GRID = (1 << BITS) - 1;
+
+    private static final int RADIX = 256;
+
+    /**
+     * Keys per block below which the sort doesn't split the work further.
+     */
+    private static final int BLOCK = 1 << 16;
+
+    private SpatialSort() {}
+
+    /**
+     * Spreads the lower 16 bits of the value to the even bits.
+     */
+    private static long spread(long value) {
+        value &= 0xFFFFL;
+        value = (value | (value << 8)) & 0x00FF00FFL;
+        value = (value | (value << 4)) & 0x0F0F0F0FL;
+        value = (value | (value << 2)) & 0x33333333L;
+        value = (value | (value << 1)) & 0x55555555L;
+        return value;
+    }
+
+    public static long morton(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * Distance along the Hilbert curve filling a square
+     * 2<sup>16</sup> pixels wide.
+     */
+    public static long hilbert(int x, int y) {
+        long d = 0;
+        int rx;
+        int ry;
+        int swap;
+        for (int s = 1 << (BITS - 1); s > 0; s >>>= 1) {
+            rx = (x & s) > 0 ? 1 : 0;
+            ry = (y & s) > 0 ? 1 : 0;
+            d += ((long) s) * s * ((3 * rx) ^ ry);
+            // rotates the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = GRID - x;
+                    y = GRID - y;
+                }
+                swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return d;
+    }
+
+    private static int quantize(float value) {
+        return (int) Math.max(0, Math.min(GRID, Math.floor(value)));
+    }
+
+    /**
+     * Computes the order of the polygons from <code>begin</code>, inclusive,
+     * to <code>end</code>, exclusive.
+     * @param positions X, Y and Z of each vertex of each polygon,
+     * nine values per polygon, already scaled to pixel indexes
+     * @param begin
+     * @param end
+     * @param hilbert whether to follow a Hilbert curve instead of
+     * a Morton curve
+     * @return the index of each polygon in the sorted order,
+     * relative to <code>begin</code>
+     */
+    public static int[] order(float positions[], int begin, int end,
+     boolean hilbert) {
+        int length = end - begin;
+        long keys[] = new long[length];
+        IntStream.range(0, length).parallel().forEach(i -> {
+            int o = (begin + i) * 9;
+            int x = quantize(
+             (positions[o] + positions[o + 3] + positions[o + 6]) / 3f);
+            int y = quantize(
+             (positions[o + 1] + positions[o + 4] + positions[o + 7]) / 3f);
+            long code = hilbert ? hilbert(x, y) : morton(x, y);
+            keys[i] = (code << 32) | i;
+        });
+        sort(keys);
+        int order[] = new int[length];
+        IntStream.range(0, length).parallel()
+         .forEach(i -> order[i] = (int) keys[i]);
+        return order;
+    }
+
+    /**
+     * Sorts keys by their upper 32 bits, keeping the order of equal ones.
+     * @param keys
+     */
+    public static void sort(long keys[]) {
+        int length = keys.length;
+        int blocks = Math.max(1, Math.min(
+         ForkJoinPool.getCommonPoolParallelism() * 4, length / BLOCK));
+        int blockLength = (length + blocks - 1) / blocks;
+        long source[] = keys;
+        long target[] = new long[length];
+        long swap[];
+        int counts[][] = new int[blocks][RADIX];
+        for (int shift = 32; shift < 64; shift += 8) {
+            final int finalShift = shift;
+            final long finalSource[] = source;
+            final long finalTarget[] = target;
+            // counts each digit in each block
+            IntStream.range(0, blocks).parallel().forEach(block -> {
+                int count[] = counts[block];
+                Arrays.fill(count, 0);
+                int blockEnd = Math.min(length, (block + 1) * blockLength);
+                for (int i = block * blockLength; i < blockEnd; i++) {
+                    count[(int) (finalSource[i] >>> finalShift) & 0xFF]++;
+                }
+            });
+            // turns the counts into the first target index of each digit
+            // in each block, blocks of the same digit in order
+            int offset = 0;
+            int count;
+            for (int digit = 0; digit < RADIX; digit++) {
+                for (int block = 0; block < blocks; block++) {
+                    count = counts[block][digit];
+                    counts[block][digit] = offset;
+                    offset += count;
+                }
+            }
+            IntStream.range(0, blocks).parallel().forEach(block -> {
+                int next[] = counts[block];
+                int blockEnd = Math.min(length, (block + 1) * blockLength);
+                for (int i = block * blockLength; i < blockEnd; i++) {
+                    finalTarget[
+                     next[(int) (finalSource[i] >>> finalShift) & 0xFF]++]
+                     = finalSource[i];
+                }
+            });
+            swap = source;
+            source = target;
+            target = swap;
+        }
+        // an even amount of passes leaves the result in keys
+    }
+}
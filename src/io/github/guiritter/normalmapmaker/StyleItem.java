@@ -45,8 +45,9 @@ public class StyleItem {
 
     static {
         List<StyleItem> styleItemList = new ArrayList<>();
-        styleItemList.add(new StyleItem(Style.list.get(0)));
-        styleItemList.add(new StyleItem(Style.list.get(1)));
+        for (Style style : Style.list) {
+            styleItemList.add(new StyleItem(style));
+        }
         array = styleItemList.toArray(new StyleItem[]{});
     }
 }
@@ -0,0 +1,376 @@
+package io.github.guiritter.normalmapmaker;
+
+import static io.github.guiritter.normalmapmaker.TriangleMesh.maximumX;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.maximumY;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.minimumX;
+import static io.github.guiritter.normalmapmaker.TriangleMesh.minimumY;
+import io.github.guiritter.normalmapmaker.style.Style;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders an image in tiles on {@link Worker} processes, as set by
+ * {@link Options#workers}. The polygons are binned per tile, each tile is
+ * sent to a worker over a socket with only the polygons that touch it,
+ * and the rendered tiles are stitched into the framebuffer. Workers are
+ * started on this machine and connect back to a port on the loopback
+ * address. A worker that dies, or whose connection fails, has its tile
+ * given to the others, so the image is only lost if every one of them
+ * does.
+ * <p>
+ * The protocol is made of big endian values, as written by
+ * {@link DataOutputStream}. Once connected, the coordinator sends
+ * {@link #MAGIC}, the style's name, the engine, whether small polygons
+ * are splatted and whether the worker keeps a normal per pixel, as in
+ * {@link Framebuffer#normals}. Then, for each tile, {@link #TILE}, its
+ * left column, bottom row, width and height, the amount of polygons,
+ * whether they have vertex normals, and their positions, normals and
+ * vertex normals as floats, as in {@link TriangleMesh}, in drawing
+ * order. The worker answers with the tile's colors, depths and, if kept,
+ * normals, row by row from the top, as ints. {@link #DONE} ends the connection.
+ * @author Guilherme Alan Ritter
+ */
+final class Tiles {
+
+    /**
+     * Ends a connection.
+     */
+    static final int DONE = 0;
+
+    /**
+     * Starts a connection.
+     */
+    static final int MAGIC = 0x4E4D4D54;
+
+    /**
+     * How long to wait for a worker to connect, in milliseconds.
+     */
+    private static final int TIMEOUT = 60000;
+
+    /**
+     * Starts a tile.
+     */
+    static final int TILE = 1;
+
+    private Tiles() {}
+
+    /**
+     * Finds the tiles each polygon touches.
+     * @param mesh
+     * @param framebuffer the whole image
+     * @param size tile width and height
+     * @param columns tiles per row
+     * @param rows tiles per column
+     * @param offsets receives where the polygons of each tile start,
+     * and how many there are in all at the end
+     * @return index of the polygons of each tile, in drawing order
+     */
+    private static int[] bin(TriangleMesh mesh, Framebuffer framebuffer,
+     int size, int columns, int rows, int offsets[]) {
+        int polygons[] = null;
+        int next[] = null;
+        int b;
+        int xMinimum;
+        int xMaximum;
+        int yMinimum;
+        int yMaximum;
+        // counts the polygons of each tile, then places them
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < mesh.count; i++) {
+                b = i * 4;
+                if (i < mesh.splatStart) {
+                    if (mesh.bounds[b + maximumX]
+                     < mesh.bounds[b + minimumX]) {
+                        // nothing to draw
+                        continue;
+                    }
+                    // one more pixel, since the fixed point engine rounds
+                    // vertices to its grid
+                    xMinimum = mesh.bounds[b + minimumX] / size;
+                    yMinimum = mesh.bounds[b + minimumY] / size;
+                    xMaximum = Math.min(columns - 1,
+                     (mesh.bounds[b + maximumX] + 1) / size);
+                    yMaximum = Math.min(rows - 1,
+                     (mesh.bounds[b + maximumY] + 1) / size);
+                } else {
+                    xMinimum = Math.max(0, Math.min(framebuffer.width - 1,
+                     Algorithm.getSplatPixel(mesh.positions, i, 0))) / size;
+                    yMinimum = Math.max(0, Math.min(framebuffer.height - 1,
+                     Algorithm.getSplatPixel(mesh.positions, i, 1))) / size;
+                    xMaximum = xMinimum;
+                    yMaximum = yMinimum;
+                }
+                for (int y = yMinimum; y <= yMaximum; y++) {
+                    for (int x = xMinimum; x <= xMaximum; x++) {
+                        if (pass == 0) {
+                            offsets[(y * columns) + x + 1]++;
+                        } else {
+                            polygons[next[(y * columns) + x]++] = i;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int t = 1; t < offsets.length; t++) {
+                    offsets[t] += offsets[t - 1];
+                }
+                polygons = new int[offsets[offsets.length - 1]];
+                next = Arrays.copyOf(offsets, offsets.length - 1);
+            }
+        }
+        return polygons;
+    }
+
+    /**
+     * Sends tiles to one worker, and stitches the ones it returns, until
+     * every tile is done.
+     * @param server where the worker connects
+     * @param pending tiles waiting for a worker
+     * @param tileCount tiles with polygons, in total
+     * @param remaining tiles not stitched yet
+     * @throws IOException if the connection fails, after giving its tile
+     * back to the others
+     */
+    private static void dispatch(Algorithm algorithm, TriangleMesh mesh,
+     float normals[], float vertexNormals[], Framebuffer framebuffer,
+     Style style, Options options, int columns, int offsets[],
+     int polygons[], ServerSocket server,
+     BlockingQueue<Integer> pending, int tileCount,
+     AtomicInteger remaining) throws IOException {
+        int size = options.tileSize;
+        boolean smooth = vertexNormals != null;
+        try (Socket socket = server.accept()) {
+            DataOutputStream output = new DataOutputStream(
+             new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream input = new DataInputStream(
+             new BufferedInputStream(socket.getInputStream()));
+            output.writeInt(MAGIC);
+            output.writeUTF(style.name);
+            output.writeInt(options.engine);
+            output.writeBoolean(options.splat);
+            output.writeBoolean(framebuffer.normals != null);
+            Integer tile;
+            while (remaining.get() > 0) {
+                try {
+                    tile = pending.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (tile == null) {
+                    // tiles may still come back from a worker that dies
+                    continue;
+                }
+                int left = (tile % columns) * size;
+                int bottom = (tile / columns) * size;
+                int width = Math.min(size, framebuffer.width - left);
+                int height = Math.min(size, framebuffer.height - bottom);
+                int colors[] = new int[width * height];
+                int depths[] = new int[width * height];
+                int packedNormals[] = framebuffer.normals == null
+                 ? null : new int[width * height];
+                try {
+                    output.writeInt(TILE);
+                    output.writeInt(left);
+                    output.writeInt(bottom);
+                    output.writeInt(width);
+                    output.writeInt(height);
+                    output.writeInt(offsets[tile + 1] - offsets[tile]);
+                    output.writeBoolean(smooth);
+                    for (int i = offsets[tile]; i < offsets[tile + 1]; i++) {
+                        write(output, mesh.positions, polygons[i] * 9, 9);
+                    }
+                    for (int i = offsets[tile]; i < offsets[tile + 1]; i++) {
+                        write(output, normals, polygons[i] * 3, 3);
+                    }
+                    for (int i = offsets[tile];
+                     smooth && (i < offsets[tile + 1]); i++) {
+                        write(output, vertexNormals, polygons[i] * 9, 9);
+                    }
+                    output.flush();
+                    read(input, colors);
+                    read(input, depths);
+                    if (packedNormals != null) {
+                        read(input, packedNormals);
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    pending.add(tile);
+                    throw ex;
+                }
+                // the tile's rows, from the top, in the whole image
+                long row = ((long) (framebuffer.height - bottom - height))
+                 * framebuffer.width;
+                int i = 0;
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        framebuffer.colors.putInt(row + left + x, colors[i]);
+                        framebuffer.depths.putInt(row + left + x, depths[i]);
+                        if (packedNormals != null) {
+                            framebuffer.normals.putInt(row + left + x,
+                             packedNormals[i]);
+                        }
+                        i++;
+                    }
+                    row += framebuffer.width;
+                }
+                algorithm.setProgressValue(3,
+                 tileCount - remaining.decrementAndGet() - 1);
+            }
+            output.writeInt(DONE);
+            output.flush();
+        }
+    }
+
+    static void read(DataInputStream input, int values[])
+     throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = input.readInt();
+        }
+    }
+
+    static void read(DataInputStream input, float values[])
+     throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = input.readFloat();
+        }
+    }
+
+    /**
+     * Renders every polygon, with a single sample per pixel, on
+     * {@link Options#workers} new worker processes.
+     * @param algorithm where progress is reported
+     * @param mesh
+     * @param normals X, Y and Z of each polygon's normal, three values per
+     * polygon, in the mesh's order, from which the mesh packed its own
+     * @param vertexNormals X, Y and Z of the normal at each vertex of each
+     * polygon, nine values per polygon, in the mesh's order, or null
+     * @param framebuffer the whole image
+     * @param style must be in {@link Style#list}
+     * @param options
+     * @throws IOException if every worker died before the image was done,
+     * or none could be started
+     */
+    public static void render(Algorithm algorithm, TriangleMesh mesh,
+     float normals[], float vertexNormals[], Framebuffer framebuffer,
+     Style style, Options options)
+     throws IOException {
+        int size = options.tileSize;
+        int columns = ((framebuffer.width - 1) / size) + 1;
+        int rows = ((framebuffer.height - 1) / size) + 1;
+        // polygons of each tile, in drawing order: those of tile t are from
+        // offsets[t], inclusive, to offsets[t + 1], exclusive
+        int offsets[] = new int[(columns * rows) + 1];
+        int polygons[] = bin(mesh, framebuffer, size, columns, rows, offsets);
+        BlockingQueue<Integer> pending = new LinkedBlockingQueue<>();
+        for (int tile = 0; tile < offsets.length - 1; tile++) {
+            // empty tiles are already the background
+            if (offsets[tile + 1] > offsets[tile]) {
+                pending.add(tile);
+            }
+        }
+        int tileCount = pending.size();
+        AtomicInteger remaining = new AtomicInteger(tileCount);
+        algorithm.setProgressMaximum(3, Math.max(1, tileCount - 1));
+        if (pending.isEmpty()) {
+            return;
+        }
+        int workers = Math.min(options.workers, pending.size());
+        List<Process> processes = new ArrayList<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers,
+         runnable -> {
+            Thread thread = new Thread(runnable,
+             "tiles-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ServerSocket server = new ServerSocket(
+         0, workers, InetAddress.getLoopbackAddress());
+        try {
+            server.setSoTimeout(TIMEOUT);
+            for (int w = 0; w < workers; w++) {
+                processes.add(new ProcessBuilder(
+                 new File(new File(System.getProperty("java.home"), "bin"),
+                  "java").getPath(),
+                 "-cp", System.getProperty("java.class.path"),
+                 Worker.class.getName(),
+                 server.getInetAddress().getHostAddress(),
+                 Integer.toString(server.getLocalPort()))
+                 .inheritIO().start());
+            }
+            ExecutorCompletionService<Void> service
+             = new ExecutorCompletionService<>(executor);
+            for (int w = 0; w < workers; w++) {
+                service.submit(() -> {
+                    dispatch(algorithm, mesh, normals, vertexNormals,
+                     framebuffer, style, options,
+                     columns, offsets, polygons, server, pending, tileCount,
+                     remaining);
+                    return null;
+                });
+            }
+            Throwable failure = null;
+            for (int w = 0; w < workers; w++) {
+                try {
+                    service.take().get();
+                } catch (ExecutionException ex) {
+                    // once every tile is done, dispatchers still waiting for
+                    // a worker fail when the server closes, which is no loss
+                    if (remaining.get() > 0) {
+                        failure = ex.getCause();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (remaining.get() == 0) {
+                    // workers that never connected wait no longer
+                    server.close();
+                }
+            }
+            if (remaining.get() > 0) {
+                throw new IOException("every worker died with "
+                 + remaining.get() + " tile(s) left", failure);
+            }
+        } finally {
+            server.close();
+            executor.shutdownNow();
+            for (Process process : processes) {
+                try {
+                    if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                        process.destroyForcibly();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    static void write(DataOutputStream output, float values[], int offset,
+     int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            output.writeFloat(values[i]);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.util.stream.IntStream;
+
+/**
+ * Finds invalid polygons in batches: those where at least two vertices
+ * occupy the same position and those whose vertices form a straight line.
+ * Polygons are copied in chunks into structure of arrays scratch buffers
+ * and tested with squared lengths and the squared magnitude of the cross
+ * product, in branch free loops the JIT compiler can vectorize. Only the
+ * few polygons that are not clearly valid go through the exact tests of
+ * {@link #isInvalid(float[], int)}. Chunks are processed in parallel.
+ * @author Guilherme Alan Ritter
+ */
+final class Validator {
+
+    private static final int CHUNK = 1024;
+
+    /**
+     * Minimum squared sine of the angle between two edges for a polygon to
+     * be clearly not a line. Polygons considered lines by
+     * {@link #isInvalid(float[], int)} are far thinner than this.
+     */
+    private static final double THRESHOLD = 1e-12;
+
+    private Validator() {}
+
+    private static double distance(float positions[], int a, int b) {
+        double x = positions[a    ] - positions[b    ];
+        double y = positions[a + 1] - positions[b + 1];
+        double z = positions[a + 2] - positions[b + 2];
+        return Math.sqrt((x * x) + (y * y) + (z * z));
+    }
+
+    /**
+     * Whether at least two vertices have the same position, or the distance
+     * from one vertex to the other two adds up exactly to the distance
+     * between those two.
+     * @param positions
+     * @param offset index of the polygon's first value
+     * @return whether the polygon is invalid
+     */
+    public static boolean isInvalid(float positions[], int offset) {
+        double d01 = distance(positions, offset    , offset + 3);
+        double d02 = distance(positions, offset    , offset + 6);
+        double d12 = distance(positions, offset + 3, offset + 6);
+        if ((d01 == 0d) || (d02 == 0d) || (d12 == 0d)) {
+            return true;
+        }
+        double d0 = d01 + d02;
+        double d1 = d01 + d12;
+        double d2 = d02 + d12;
+        // check who's in the middle
+        if ((d0 < d1) && (d0 < d2)) {
+            return d01 + d02 == d12;
+        } else if ((d1 < d0) && (d1 < d2)) {
+            return d01 + d12 == d02;
+        } else {
+            return d02 + d12 == d01;
+        }
+    }
+
+    /**
+     * Validates every polygon.
+     * @param positions X, Y and Z of each vertex of each polygon,
+     * nine values per polygon
+     * @param valid receives whether each polygon is valid
+     * @param count amount of polygons
+     * @return the amount of invalid polygons
+     */
+    public static long validate(float positions[], boolean valid[],
+     int count) {
+        return IntStream.range(0, (count + CHUNK - 1) / CHUNK).parallel()
+         .mapToLong(chunk -> validate(positions, valid,
+          chunk * CHUNK, Math.min(count, (chunk + 1) * CHUNK))).sum();
+    }
+
+    private static long validate(float positions[], boolean valid[],
+     int begin, int end) {
+        int length = end - begin;
+        double x0[] = new double[length];
+        double y0[] = new double[length];
+        double z0[] = new double[length];
+        double x1[] = new double[length];
+        double y1[] = new double[length];
+        double z1[] = new double[length];
+        double x2[] = new double[length];
+        double y2[] = new double[length];
+        double z2[] = new double[length];
+        boolean clear[] = new boolean[length];
+        int i;
+        int o;
+        for (i = 0, o = begin * 9; i < length; i++, o += 9) {
+            x0[i] = positions[o    ];
+            y0[i] = positions[o + 1];
+            z0[i] = positions[o + 2];
+            x1[i] = positions[o + 3];
+            y1[i] = positions[o + 4];
+            z1[i] = positions[o + 5];
+            x2[i] = positions[o + 6];
+            y2[i] = positions[o + 7];
+            z2[i] = positions[o + 8];
+        }
+        double e1x;
+        double e1y;
+        double e1z;
+        double e2x;
+        double e2y;
+        double e2z;
+        double cx;
+        double cy;
+        double cz;
+        double l1;
+        double l2;
+        for (i = 0; i < length; i++) {
+            e1x = x1[i] - x0[i];
+            e1y = y1[i] - y0[i];
+            e1z = z1[i] - z0[i];
+            e2x = x2[i] - x0[i];
+            e2y = y2[i] - y0[i];
+            e2z = z2[i] - z0[i];
+            l1 = (e1x * e1x) + (e1y * e1y) + (e1z * e1z);
+            l2 = (e2x * e2x) + (e2y * e2y) + (e2z * e2z);
+            cx = (e1y * e2z) - (e1z * e2y);
+            cy = (e1z * e2x) - (e1x * e2z);
+            cz = (e1x * e2y) - (e1y * e2x);
+            // a nonzero cross product also rules out
+            // the second and third vertices overlapping
+            clear[i] = (l1 > 0d) & (l2 > 0d)
+             & (((cx * cx) + (cy * cy) + (cz * cz)) > (THRESHOLD * l1 * l2));
+        }
+        long invalid = 0;
+        for (i = 0; i < length; i++) {
+            valid[begin + i] = clear[i]
+             || !isInvalid(positions, (begin + i) * 9);
+            if (!valid[begin + i]) {
+                invalid++;
+            }
+        }
+        return invalid;
+    }
+}
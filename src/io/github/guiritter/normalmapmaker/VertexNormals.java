@@ -0,0 +1,240 @@
+package io.github.guiritter.normalmapmaker;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * Computes smooth per-vertex normals for a triangle soup.
+ * Vertices are welded by quantizing their positions to a grid and inserting
+ * the cell keys in a lock-free open addressing hash table of primitive longs.
+ * Each welded vertex accumulates the normals of the polygons around it,
+ * weighted by polygon area or by the polygon's angle at that vertex.
+ * All passes run in parallel over the polygons.
+ * @author Guilherme Alan Ritter
+ */
+final class VertexNormals {
+
+    /**
+     * Bits per axis of the quantized vertex positions. Vertices closer than
+     * the mesh's extent divided by 2<sup>21</sup> are welded together.
+     */
+    private static final int BITS = 21;
+
+    private static final long EMPTY = 0L;
+
+    private static final long GRID = (1L << BITS) - 1;
+
+    /**
+     * Set in every stored key, so zero marks empty slots
+     * and the table needs no initialization.
+     */
+    private static final long TAKEN = Long.MIN_VALUE;
+
+    private VertexNormals() {}
+
+    private static void add(AtomicIntegerArray array, int index, float value) {
+        int expected;
+        do {
+            expected = array.get(index);
+        } while (!array.compareAndSet(index, expected, Float.floatToRawIntBits(
+         Float.intBitsToFloat(expected) + value)));
+    }
+
+    /**
+     * Finalization step of MurmurHash3.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb93e185a869bL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static long quantize(double value, double minimum, double factor) {
+        return Math.min(GRID,
+         Math.max(0, Math.round((value - minimum) * factor)));
+    }
+
+    /**
+     * @param positions X, Y and Z of each vertex of each polygon,
+     * nine values per polygon
+     * @param facetNormals X, Y and Z of each polygon's stored normal,
+     * used to orient the geometric normals; may be zero
+     * @param valid which polygons take part in the computation
+     * @param count amount of polygons
+     * @param angleWeighted whether to weight the polygon normals
+     * by the angle at each vertex instead of by the polygon's area
+     * @return X, Y and Z of the unit normal at each vertex of each polygon,
+     * nine values per polygon; zero for invalid polygons
+     */
+    public static float[] compute(float positions[], float facetNormals[],
+     boolean valid[], int count, boolean angleWeighted) {
+        double limits[] = new double[6];
+        for (int axis = 0; axis < 3; axis++) {
+            final int a = axis;
+            limits[a] = IntStream.range(0, count * 3).parallel()
+             .filter(v -> valid[v / 3])
+             .mapToDouble(v -> positions[(v * 3) + a]).min().orElse(0);
+            limits[a + 3] = IntStream.range(0, count * 3).parallel()
+             .filter(v -> valid[v / 3])
+             .mapToDouble(v -> positions[(v * 3) + a]).max().orElse(0);
+        }
+        double factors[] = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            double extent = limits[axis + 3] - limits[axis];
+            factors[axis] = extent > 0 ? GRID / extent : 0;
+        }
+        long keys[] = new long[count * 3];
+        IntStream.range(0, count * 3).parallel().forEach(v -> {
+            if (valid[v / 3]) {
+                int o = v * 3;
+                keys[v] = TAKEN
+                 | (quantize(positions[o], limits[0], factors[0]) << (2 * BITS))
+                 | (quantize(positions[o + 1], limits[1], factors[1]) << BITS)
+                 | quantize(positions[o + 2], limits[2], factors[2]);
+            }
+        });
+        // a closed mesh has about half as many vertices as polygons,
+        // so this usually leaves the table at most a third full
+        int capacity
+         = Integer.highestOneBit(Math.max(16, (count * 3) / 2)) << 1;
+        int slots[] = new int[count * 3];
+        AtomicLongArray table;
+        while (true) {
+            table = insert(keys, valid, slots, capacity);
+            if (table != null) {
+                break;
+            }
+            if (capacity >= (1 << 30)) {
+                throw new OutOfMemoryError("too many vertices to weld");
+            }
+            capacity <<= 1;
+        }
+        AtomicIntegerArray sums[] = new AtomicIntegerArray[]{
+            new AtomicIntegerArray(capacity),
+            new AtomicIntegerArray(capacity),
+            new AtomicIntegerArray(capacity)};
+        IntStream.range(0, count).parallel().forEach(p -> {
+            if (!valid[p]) {
+                return;
+            }
+            int o = p * 9;
+            double e1x = positions[o + 3] - positions[o    ];
+            double e1y = positions[o + 4] - positions[o + 1];
+            double e1z = positions[o + 5] - positions[o + 2];
+            double e2x = positions[o + 6] - positions[o    ];
+            double e2y = positions[o + 7] - positions[o + 1];
+            double e2z = positions[o + 8] - positions[o + 2];
+            // twice the area, in the direction given by the winding
+            double nx = (e1y * e2z) - (e1z * e2y);
+            double ny = (e1z * e2x) - (e1x * e2z);
+            double nz = (e1x * e2y) - (e1y * e2x);
+            if (((nx * facetNormals[p * 3]) + (ny * facetNormals[(p * 3) + 1])
+             + (nz * facetNormals[(p * 3) + 2])) < 0) {
+                nx = -nx;
+                ny = -ny;
+                nz = -nz;
+            }
+            if (angleWeighted) {
+                double length = Math.sqrt((nx * nx) + (ny * ny) + (nz * nz));
+                if (length == 0) {
+                    return;
+                }
+                nx /= length;
+                ny /= length;
+                nz /= length;
+            }
+            double weight = 1;
+            for (int v = 0; v < 3; v++) {
+                if (angleWeighted) {
+                    weight = angle(positions, o, v);
+                }
+                int slot = slots[(p * 3) + v];
+                add(sums[0], slot, (float) (nx * weight));
+                add(sums[1], slot, (float) (ny * weight));
+                add(sums[2], slot, (float) (nz * weight));
+            }
+        });
+        float normals[] = new float[count * 9];
+        IntStream.range(0, count * 3).parallel().forEach(v -> {
+            if (!valid[v / 3]) {
+                return;
+            }
+            float x = Float.intBitsToFloat(sums[0].get(slots[v]));
+            float y = Float.intBitsToFloat(sums[1].get(slots[v]));
+            float z = Float.intBitsToFloat(sums[2].get(slots[v]));
+            float length = (float) Math.sqrt((x * x) + (y * y) + (z * z));
+            if (length > 0) {
+                normals[ v * 3     ] = x / length;
+                normals[(v * 3) + 1] = y / length;
+                normals[(v * 3) + 2] = z / length;
+            }
+        });
+        return normals;
+    }
+
+    /**
+     * Angle at vertex <code>v</code> of the polygon starting at
+     * <code>offset</code>.
+     */
+    private static double angle(float positions[], int offset, int v) {
+        int a = offset + (((v + 1) % 3) * 3);
+        int b = offset + (((v + 2) % 3) * 3);
+        int c = offset + (v * 3);
+        double ux = positions[a    ] - positions[c    ];
+        double uy = positions[a + 1] - positions[c + 1];
+        double uz = positions[a + 2] - positions[c + 2];
+        double wx = positions[b    ] - positions[c    ];
+        double wy = positions[b + 1] - positions[c + 1];
+        double wz = positions[b + 2] - positions[c + 2];
+        double cx = (uy * wz) - (uz * wy);
+        double cy = (uz * wx) - (ux * wz);
+        double cz = (ux * wy) - (uy * wx);
+        return Math.atan2(Math.sqrt((cx * cx) + (cy * cy) + (cz * cz)),
+         (ux * wx) + (uy * wy) + (uz * wz));
+    }
+
+    /**
+     * Inserts every key in the table, storing each key's slot, which
+     * identifies the welded vertex.
+     * @return the table, or null if it got more than three quarters full
+     */
+    private static AtomicLongArray insert(long keys[], boolean valid[],
+     int slots[], int capacity) {
+        AtomicLongArray table = new AtomicLongArray(capacity);
+        int mask = capacity - 1;
+        int limit = (capacity / 4) * 3;
+        AtomicInteger used = new AtomicInteger();
+        boolean full
+         = IntStream.range(0, keys.length).parallel().anyMatch(v -> {
+            if (!valid[v / 3]) {
+                return false;
+            }
+            long key = keys[v];
+            int slot = (int) mix(key) & mask;
+            long found;
+            while (true) {
+                found = table.get(slot);
+                if (found == key) {
+                    break;
+                }
+                if ((found == EMPTY) && table.compareAndSet(slot, EMPTY, key)) {
+                    if (used.incrementAndGet() > limit) {
+                        return true;
+                    }
+                    break;
+                }
+                if (found != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            slots[v] = slot;
+            return false;
+        });
+        return full ? null : table;
+    }
+}
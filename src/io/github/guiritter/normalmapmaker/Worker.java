@@ -0,0 +1,135 @@
+package io.github.guiritter.normalmapmaker;
+
+import io.github.guiritter.normalmapmaker.style.Style;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+
+/**
+ * Renders tiles for {@link Tiles} in its own process, which starts it with
+ * {@link Options#workers}:
+ * <pre>
+ * java -cp NormalMapMaker.jar io.github.guiritter.normalmapmaker.Worker
+ *  host port
+ * </pre>
+ * Connects to the coordinator at the given address, renders every tile it
+ * sends, as described in {@link Tiles}, and exits when told to or when
+ * the connection closes. Exits quietly if the coordinator was already
+ * done. Tiles are kept in the heap.
+ * @author Guilherme Alan Ritter
+ */
+@SuppressWarnings("CallToPrintStackTrace")
+public final class Worker {
+
+    private Worker() {}
+
+    /**
+     * Serves one coordinator until it's done.
+     * @param input
+     * @param output
+     * @throws IOException if the connection fails or the coordinator
+     * doesn't follow the protocol
+     */
+    private static void serve(DataInputStream input, DataOutputStream output)
+     throws IOException {
+        int magic;
+        try {
+            magic = input.readInt();
+        } catch (EOFException | SocketException ex) {
+            // the coordinator was done before accepting this worker
+            return;
+        }
+        if (magic != Tiles.MAGIC) {
+            throw new IOException("not a coordinator");
+        }
+        String name = input.readUTF();
+        Style style = null;
+        for (Style s : Style.list) {
+            if (s.name.equals(name)) {
+                style = s;
+            }
+        }
+        if (style == null) {
+            throw new IOException("unknown style: " + name);
+        }
+        Options options = new Options();
+        options.engine = input.readInt();
+        boolean splat = input.readBoolean();
+        boolean keepNormals = input.readBoolean();
+        Algorithm algorithm = new Algorithm() {
+
+            @Override
+            public void setProgressMaximum(int index, int maximumValue) {}
+
+            @Override
+            public void setProgressValue(int index, int value) {}
+        };
+        while (input.readInt() == Tiles.TILE) {
+            int left = input.readInt();
+            int bottom = input.readInt();
+            int width = input.readInt();
+            int height = input.readInt();
+            int count = input.readInt();
+            boolean smooth = input.readBoolean();
+            float positions[] = new float[count * 9];
+            float normals[] = new float[count * 3];
+            float vertexNormals[] = smooth ? new float[count * 9] : null;
+            Tiles.read(input, positions);
+            Tiles.read(input, normals);
+            if (smooth) {
+                Tiles.read(input, vertexNormals);
+            }
+            boolean valid[] = new boolean[count];
+            Arrays.fill(valid, true);
+            // already in drawing order, with small polygons at the end
+            TriangleMesh mesh = new TriangleMesh(positions, normals,
+             vertexNormals, valid, count, splat, Options.ORDER_FILE);
+            try (Framebuffer framebuffer = new Framebuffer(left, bottom,
+             width, height, style.backgroundColor, options,
+             keepNormals)) {
+                algorithm.draw(mesh, framebuffer, style, options);
+                long size = ((long) width) * height;
+                for (long i = 0; i < size; i++) {
+                    output.writeInt(framebuffer.colors.getInt(i));
+                }
+                for (long i = 0; i < size; i++) {
+                    output.writeInt(framebuffer.depths.getInt(i));
+                }
+                for (long i = 0; (framebuffer.normals != null) && (i < size);
+                 i++) {
+                    output.writeInt(framebuffer.normals.getInt(i));
+                }
+            }
+            output.flush();
+        }
+    }
+
+    /**
+     * Connects to a coordinator and renders its tiles.
+     * @param args host and port of the coordinator
+     */
+    public static void main(String args[]) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length != 2) {
+            System.err.println("usage: Worker host port");
+            System.exit(2);
+        }
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            serve(new DataInputStream(new BufferedInputStream(
+             socket.getInputStream())), new DataOutputStream(
+             new BufferedOutputStream(socket.getOutputStream())));
+        } catch (ConnectException ex) {
+            // the coordinator was done before this worker started
+        } catch (IOException | RuntimeException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
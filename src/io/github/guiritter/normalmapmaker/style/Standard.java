@@ -22,6 +22,20 @@ public class Standard extends Style {
         color[3] = 255;
     }
 
+    @Override
+    public void getStyleColors(double normals[], int colors[], int count) {
+        long red;
+        long green;
+        long blue;
+        for (int i = 0; i < count; i++) {
+            red   = Math.round((normals[ i * 3     ] + 1) * 127.5);
+            green = Math.round((normals[(i * 3) + 1] + 1) * 127.5);
+            blue  = Math.round((normals[(i * 3) + 2] + 1) * 127.5);
+            colors[i] = 0xFF000000 | (((int) red & 0xFF) << 16)
+             | (((int) green & 0xFF) << 8) | ((int) blue & 0xFF);
+        }
+    }
+
     @Override
     public String toString() {
         return name;
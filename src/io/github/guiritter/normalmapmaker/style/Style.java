@@ -2,9 +2,14 @@ package io.github.guiritter.normalmapmaker.style;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.ServiceLoader;
 
 /**
  * How to translate each normal's components into color.
+ * Styles are found with {@link ServiceLoader}, so more of them can be
+ * shipped in their own jars: each one needs a public constructor without
+ * parameters and its class name listed in
+ * <code>META-INF/services/io.github.guiritter.normalmapmaker.style.Style</code>.
  * @author Guilherme Alan Ritter
  */
 public abstract class Style {
@@ -12,7 +17,7 @@ public abstract class Style {
     public int backgroundColor[];
 
     /**
-     * List of available styles.
+     * List of available styles, in the order they were found.
      */
     public static final List<Style> list = new ArrayList<>();
 
@@ -31,4 +36,41 @@ public abstract class Style {
 
     public abstract void getStyleColor(double normalX,
             double normalY, double normalZ, int color[]);
+
+    /**
+     * Translates several normals at once, such as a row of pixels, into
+     * colors packed as ARGB. Renderers only call this one, so styles should
+     * override it with a loop that doesn't go through
+     * {@link #getStyleColor(double, double, double, int[])} for each pixel.
+     * @param normals X, Y and Z of each normal, three values per pixel
+     * @param colors receives the packed color of each pixel
+     * @param count amount of pixels
+     */
+    public void getStyleColors(double normals[], int colors[], int count) {
+        int color[] = new int[4];
+        for (int i = 0; i < count; i++) {
+            getStyleColor(normals[i * 3], normals[(i * 3) + 1],
+             normals[(i * 3) + 2], color);
+            colors[i] = pack(color[0], color[1], color[2], color[3]);
+        }
+    }
+
+    /**
+     * Packs a color as ARGB.
+     * @param red
+     * @param green
+     * @param blue
+     * @param alpha
+     * @return
+     */
+    public static int pack(int red, int green, int blue, int alpha) {
+        return ((alpha & 0xFF) << 24) | ((red & 0xFF) << 16)
+         | ((green & 0xFF) << 8) | (blue & 0xFF);
+    }
+
+    static {
+        for (Style style : ServiceLoader.load(Style.class)) {
+            list.add(style);
+        }
+    }
 }
@@ -22,6 +22,18 @@ public class WarThunder extends Style {
         color[3] = (int) Math.round((normalX + 1) * 127.5);
     }
 
+    @Override
+    public void getStyleColors(double normals[], int colors[], int count) {
+        long green;
+        long alpha;
+        for (int i = 0; i < count; i++) {
+            green = Math.round((1 - normals[(i * 3) + 1]) * 127.5);
+            alpha = Math.round((normals[i * 3] + 1) * 127.5);
+            colors[i] = (((int) alpha & 0xFF) << 24)
+             | (((int) green & 0xFF) << 8);
+        }
+    }
+
     @Override
     public String toString() {
         return name;